@@ -0,0 +1,109 @@
+package im.boddy.iotester;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput ceiling that byte accounting alone imposes on IOTester: each
+ * counting thread "transfers" a 4 KB buffer and counts it, while one tick
+ * thread drains the counter as IOTester.run does, so the counting method's
+ * ops/sec times 4 KB is the byte rate. The counting threads default to 4;
+ * pass eg. -tg 64,1 to vary them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CounterThroughputBenchmark
+{
+    static final int BUFFER_LENGTH = 4096;
+    static final int TICK_MS = 100;
+
+    @State(Scope.Group)
+    public static class Counters
+    {
+        final AtomicLong atomic = new AtomicLong();
+        final LongAdder adder = new LongAdder();
+        final List<StreamCounter> streams = new CopyOnWriteArrayList<StreamCounter>();
+        long last;
+    }
+
+    @State(Scope.Thread)
+    public static class Buffers
+    {
+        final byte[] source = new byte[BUFFER_LENGTH];
+        final byte[] buffer = new byte[BUFFER_LENGTH];
+        StreamCounter stream;
+    }
+
+    @Benchmark
+    @Group("atomicLong")
+    @GroupThreads(4)
+    public void atomicLongCount(Counters counters, Buffers buffers)
+    {
+        System.arraycopy(buffers.source, 0, buffers.buffer, 0, BUFFER_LENGTH);
+        counters.atomic.addAndGet(BUFFER_LENGTH);
+    }
+
+    @Benchmark
+    @Group("atomicLong")
+    @GroupThreads(1)
+    public long atomicLongTick(Counters counters) throws InterruptedException
+    {
+        Thread.sleep(TICK_MS);
+        return counters.atomic.getAndSet(0);
+    }
+
+    @Benchmark
+    @Group("longAdder")
+    @GroupThreads(4)
+    public void longAdderCount(Counters counters, Buffers buffers)
+    {
+        System.arraycopy(buffers.source, 0, buffers.buffer, 0, BUFFER_LENGTH);
+        counters.adder.add(BUFFER_LENGTH);
+    }
+
+    @Benchmark
+    @Group("longAdder")
+    @GroupThreads(1)
+    public long longAdderTick(Counters counters) throws InterruptedException
+    {
+        Thread.sleep(TICK_MS);
+        return counters.adder.sumThenReset();
+    }
+
+    /**
+     * One single-writer StreamCounter per thread, summed by the tick thread as IOTester.sampleStreams does.
+     */
+    @Benchmark
+    @Group("streamCounter")
+    @GroupThreads(4)
+    public void streamCounterCount(Counters counters, Buffers buffers)
+    {
+        if (buffers.stream == null)
+        {
+            buffers.stream = new StreamCounter(Thread.currentThread().getName());
+            counters.streams.add(buffers.stream);
+        }
+        System.arraycopy(buffers.source, 0, buffers.buffer, 0, BUFFER_LENGTH);
+        buffers.stream.addRead(BUFFER_LENGTH);
+    }
+
+    @Benchmark
+    @Group("streamCounter")
+    @GroupThreads(1)
+    public long streamCounterTick(Counters counters) throws InterruptedException
+    {
+        Thread.sleep(TICK_MS);
+        long count = 0;
+        for (StreamCounter stream : counters.streams)
+            count += stream.readCount();
+        long delta = count - counters.last;
+        counters.last = count;
+        return delta;
+    }
+}
@@ -0,0 +1,50 @@
+package im.boddy.iotester;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of the per-operation byte accounting under contention; see also
+ * CounterThroughputBenchmark for the end-to-end throughput ceiling.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class CounterUpdateBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Shared
+    {
+        final AtomicLong atomic = new AtomicLong();
+        final LongAdder adder = new LongAdder();
+    }
+
+    @State(Scope.Thread)
+    public static class PerThread
+    {
+        final StreamCounter stream = new StreamCounter("bench");
+    }
+
+    @Benchmark
+    public void atomicLong(Shared shared)
+    {
+        shared.atomic.addAndGet(4096);
+    }
+
+    @Benchmark
+    public void longAdder(Shared shared)
+    {
+        shared.adder.add(4096);
+    }
+
+    @Benchmark
+    public void streamCounter(PerThread perThread)
+    {
+        perThread.stream.addWrite(4096);
+    }
+}
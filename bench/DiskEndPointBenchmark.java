@@ -0,0 +1,49 @@
+package im.boddy.iotester;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of choosing the next file position, paid by every disk operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DiskEndPointBenchmark
+{
+    @Param({"false", "true"})
+    boolean randomAccess;
+
+    File file;
+    DiskIOTester.DiskEndPoint endPoint;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        file = File.createTempFile("iotester-bench", ".dat");
+        DiskIOTester tester = new DiskIOTester(0, 4096, file.getPath(), false, 1L << 30, randomAccess);
+        endPoint = tester.new DiskEndPoint(0, 1L << 30)
+        {
+            void doIO(){}
+            void release(){}
+            void force(long bytes){}
+        };
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    @Benchmark
+    public long nextPosition()
+    {
+        return endPoint.nextPosition();
+    }
+}
@@ -0,0 +1,89 @@
+package im.boddy.iotester;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of recording into and reporting from the rate histograms, which every
+ * tick and every per-peer sample goes through.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistogramBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Shared
+    {
+        Histogram histogram;
+        ConcurrentHistogram concurrentHistogram;
+
+        @Setup
+        public void setup()
+        {
+            histogram = new Histogram(1000, 0, 1000, "bench", "MB/sec", "count");
+            concurrentHistogram = new ConcurrentHistogram(1000, 0, 1000, "bench", "MB/sec", "count");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Values
+    {
+        final Random random = new Random();
+        float next(){return random.nextFloat() * 1000;}
+    }
+
+    @Benchmark
+    public void addUncontended(Shared shared, Values values)
+    {
+        shared.histogram.add(values.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addContended(Shared shared, Values values)
+    {
+        shared.histogram.add(values.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addContendedConcurrent(Shared shared, Values values)
+    {
+        shared.concurrentHistogram.add(values.next());
+    }
+
+    @State(Scope.Benchmark)
+    public static class Filled
+    {
+        @Param({"100", "10000", "100000"})
+        int nBins;
+
+        Histogram histogram;
+
+        @Setup
+        public void setup()
+        {
+            Random random = new Random(1);
+            histogram = new Histogram(nBins, 0, 1000, "bench", "MB/sec", "count");
+            for (int i=0; i < 1000000; i++)
+                histogram.add((float) Math.abs(500 + 100 * random.nextGaussian()));
+        }
+    }
+
+    @Benchmark
+    public float[] confidenceLevelInterval(Filled filled)
+    {
+        return filled.histogram.getConfidenceLevelInterval(0.99f);
+    }
+
+    @Benchmark
+    public String toJSONString(Filled filled)
+    {
+        return filled.histogram.toJSONString();
+    }
+}
@@ -0,0 +1,67 @@
+package im.boddy.iotester;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of NetworkIOTester's blocking client over loopback, ie. the
+ * rate above which the tool itself, rather than the network, is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoopbackBenchmark
+{
+    @Param({"4096", "65536"})
+    int bufferSize;
+
+    ServerSocket serverSocket;
+    Socket clientSocket, serverSide;
+    NetworkIOTester.ConnectionEndPoint client;
+    Thread drain;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        NetworkIOTester tester = new NetworkIOTester(null, null, 1, 0, bufferSize);
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        clientSocket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        serverSide = serverSocket.accept();
+        tester.setSocketParams(clientSocket);
+
+        drain = new Thread(new Runnable(){
+            public void run()
+            {
+                byte[] buffer = new byte[bufferSize];
+                try
+                {
+                    InputStream in = serverSide.getInputStream();
+                    while (in.read(buffer) >= 0);
+                } catch (IOException ioe){}
+            }});
+        drain.start();
+
+        client = tester.new Client(clientSocket, new StreamCounter("bench"));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        client.close();
+        serverSide.close();
+        serverSocket.close();
+        drain.join();
+    }
+
+    @Benchmark
+    public void write() throws IOException
+    {
+        client.doIO();
+    }
+}
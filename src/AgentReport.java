@@ -0,0 +1,125 @@
+package im.boddy.iotester;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The results of one agent's run in cluster mode, as sent back to the coordinator.
+ */
+public class AgentReport
+{
+    private final long totalRead, totalWrite, totalTransactions, elapsedMillis;
+    private final Histogram readHistogram, writeHistogram;
+    private final LatencyHistogram readLatency, writeLatency, rttLatency;
+    private final String peerTable;
+    private final List<PhaseStats> phases;
+    private final List<OpStats> ops;
+
+    AgentReport(long totalRead, long totalWrite, long totalTransactions, long elapsedMillis, Histogram readHistogram, Histogram writeHistogram,
+            LatencyHistogram readLatency, LatencyHistogram writeLatency, LatencyHistogram rttLatency, String peerTable, List<PhaseStats> phases, List<OpStats> ops)
+    {
+        this.totalRead = totalRead;
+        this.totalWrite = totalWrite;
+        this.totalTransactions = totalTransactions;
+        this.elapsedMillis = elapsedMillis;
+        this.readHistogram = readHistogram;
+        this.writeHistogram = writeHistogram;
+        this.readLatency = readLatency;
+        this.writeLatency = writeLatency;
+        this.rttLatency = rttLatency;
+        this.peerTable = peerTable;
+        this.phases = phases;
+        this.ops = ops;
+    }
+
+    /**
+     * @return the report of the given, finished, testers, which were configured by IOTester.configure()
+     */
+    static AgentReport collect(List<IOTester> testers, long elapsedMillis)
+    {
+        long totalRead = 0, totalWrite = 0, totalTransactions = 0;
+        for (IOTester tester : testers)
+        {
+            totalRead += tester.totalReadCount();
+            totalWrite += tester.totalWriteCount();
+            totalTransactions += tester.totalTransactionCount();
+        }
+        return new AgentReport(totalRead, totalWrite, totalTransactions, elapsedMillis, IOTester.readHistogram(), IOTester.writeHistogram(),
+                IOTester.readLatency(testers), IOTester.writeLatency(testers), IOTester.rttLatency(testers), IOTester.peerTable(IOTester.peerStats(testers)),
+                IOTester.phaseStats(testers), new ArrayList<OpStats>(IOTester.opStats(testers)));
+    }
+
+    public long totalRead(){return totalRead;}
+    public long totalWrite(){return totalWrite;}
+    public long totalTransactions(){return totalTransactions;}
+    public long elapsedMillis(){return elapsedMillis;}
+    public Histogram readHistogram(){return readHistogram;}
+    public Histogram writeHistogram(){return writeHistogram;}
+    public LatencyHistogram readLatency(){return readLatency;}
+    public LatencyHistogram writeLatency(){return writeLatency;}
+    public LatencyHistogram rttLatency(){return rttLatency;}
+    public String peerTable(){return peerTable;}
+    public List<PhaseStats> phases(){return phases;}
+
+    /**
+     * @return the statistics of each type of operation, merged over the agent's testers, in name order
+     */
+    public List<OpStats> ops(){return ops;}
+
+    public void writeTo(DataOutput out) throws IOException
+    {
+        out.writeLong(totalRead);
+        out.writeLong(totalWrite);
+        out.writeLong(totalTransactions);
+        out.writeLong(elapsedMillis);
+        readHistogram.writeTo(out);
+        writeHistogram.writeTo(out);
+        readLatency.writeTo(out);
+        writeLatency.writeTo(out);
+        rttLatency.writeTo(out);
+        //
+        // writeUTF is limited to 64KB
+        //
+        byte[] table = peerTable.getBytes("UTF-8");
+        out.writeInt(table.length);
+        out.write(table);
+
+        out.writeInt(phases.size());
+        for (PhaseStats phase : phases)
+            phase.writeTo(out);
+
+        out.writeInt(ops.size());
+        for (OpStats stats : ops)
+            stats.writeTo(out);
+    }
+
+    public static AgentReport readFrom(DataInput in) throws IOException
+    {
+        long totalRead = in.readLong(), totalWrite = in.readLong(), totalTransactions = in.readLong(), elapsedMillis = in.readLong();
+        Histogram readHistogram = Histogram.readFrom(in), writeHistogram = Histogram.readFrom(in);
+        LatencyHistogram readLatency = LatencyHistogram.readFrom(in), writeLatency = LatencyHistogram.readFrom(in), rttLatency = LatencyHistogram.readFrom(in);
+        byte[] table = new byte[in.readInt()];
+        in.readFully(table);
+
+        List<PhaseStats> phases = new ArrayList<PhaseStats>();
+        for (int n = in.readInt(); n > 0; n--)
+            phases.add(PhaseStats.readFrom(in));
+
+        List<OpStats> ops = new ArrayList<OpStats>();
+        for (int n = in.readInt(); n > 0; n--)
+            ops.add(OpStats.readFrom(in));
+        return new AgentReport(totalRead, totalWrite, totalTransactions, elapsedMillis, readHistogram, writeHistogram, readLatency, writeLatency, rttLatency,
+                new String(table, "UTF-8"), phases, ops);
+    }
+
+    public static String tableHeader()
+    {
+        return String.format("%-40s %12s %12s %15s %15s %15s%n", "agent", "read MB", "written MB", "read MB/sec", "write MB/sec", "transactions");
+    }
+
+    public String tableRow(String agent)
+    {
+        return String.format("%-40s %12.1f %12.1f %15.2f %15.2f %15d%n", agent, totalRead / 1048576., totalWrite / 1048576.,
+                IOTester.toMBperSec(totalRead, elapsedMillis), IOTester.toMBperSec(totalWrite, elapsedMillis), totalTransactions);
+    }
+}
@@ -0,0 +1,157 @@
+package im.boddy.iotester;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Runs test plans on behalf of a ClusterCoordinator, one at a time:
+ * the coordinator sends the plan's options, the agent builds its testers
+ * (binding any server addresses) and reports whether it is ready, every
+ * agent starts together when the coordinator sends START, and once the
+ * plan's duration has elapsed the agent sends back an AgentReport.
+ */
+public class ClusterAgent implements Runnable
+{
+    /**
+     * Thread safe
+     */
+    static final byte START = 1, ABORT = 0;
+    /**
+     * How long a prepared agent waits for START, which the coordinator sends once every agent is prepared
+     */
+    public static final int START_TIMEOUT_MS = 2 * ClusterCoordinator.CONNECT_TIMEOUT_MS;
+
+    private final ServerSocket ssocket;
+    private volatile boolean isClosed;
+
+    public ClusterAgent(int port) throws IOException
+    {
+        this.ssocket = new ServerSocket(port);
+    }
+
+    public int port(){return ssocket.getLocalPort();}
+
+    public void run()
+    {
+        System.out.println("Agent waiting for a coordinator on port "+ port());
+        while (! isClosed)
+        {
+            try
+            {
+                Socket s = ssocket.accept();
+                try
+                {
+                    serve(s);
+                } finally {
+                    s.close();
+                }
+            } catch (IOException ioe) {
+                if (! isClosed)
+                    ioe.printStackTrace();
+            }
+        }
+    }
+
+    public void close()
+    {
+        isClosed = true;
+        try
+        {
+            ssocket.close();
+        } catch (IOException ioe) {}
+    }
+
+    private void serve(Socket s) throws IOException
+    {
+        s.setSoTimeout(START_TIMEOUT_MS);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+        Map<String, String> plan = readPlan(in);
+        System.out.println("Agent received plan "+ plan);
+
+        List<IOTester> testers;
+        try
+        {
+            String duration = plan.get("duration");
+            if (duration == null || Integer.parseInt(duration) <= 0)
+                throw new IllegalArgumentException("Cluster plans require a duration.");
+            IOTester.configure(plan);
+            testers = IOTester.testersFromArgs(plan);
+            if (testers.isEmpty())
+                throw new IllegalArgumentException("Plan has neither a disk nor a network test.");
+        } catch (Exception e) {
+            out.writeUTF(String.valueOf(e));
+            out.flush();
+            return;
+        }
+
+        //
+        // The testers have bound their servers, so they are closed however the plan ends, unless they ran to completion
+        //
+        boolean completed = false;
+        try
+        {
+            //
+            // An empty message signals that every server address is bound, so that peers may connect once started
+            //
+            out.writeUTF("");
+            out.flush();
+
+            if (in.readByte() != START)
+            {
+                System.out.println("Agent aborted by coordinator.");
+                return;
+            }
+            s.setSoTimeout(0);
+
+            long start = System.currentTimeMillis();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (IOTester tester : testers)
+            {
+                Thread thread = new Thread(tester);
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads)
+            {
+                while (true)
+                {
+                    try
+                    {
+                        thread.join();
+                        break;
+                    } catch (InterruptedException ie){}
+                }
+            }
+            completed = true;
+
+            IOTester.closeTimeSeries();
+            AgentReport.collect(testers, System.currentTimeMillis() - start).writeTo(out);
+            out.flush();
+        } finally {
+            if (! completed)
+                for (IOTester tester : testers)
+                    tester.close();
+        }
+    }
+
+    static void writePlan(Map<String, String> plan, DataOutput out) throws IOException
+    {
+        out.writeInt(plan.size());
+        for (Map.Entry<String, String> entry : plan.entrySet())
+        {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+    }
+
+    static Map<String, String> readPlan(DataInput in) throws IOException
+    {
+        Map<String, String> plan = new HashMap<String, String>();
+        for (int n = in.readInt(); n > 0; n--)
+            plan.put(in.readUTF(), in.readUTF());
+        return plan;
+    }
+}
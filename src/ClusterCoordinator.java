@@ -0,0 +1,313 @@
+package im.boddy.iotester;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Runs one test plan on a set of ClusterAgents at once and merges their results.
+ * Every agent receives the same options, in which "{index}" is replaced by the
+ * agent's position in the agent list and "{host}" by its host, so that eg.
+ * -serverAddress {host}:1337 gives every agent its own server address.
+ * Thread confined.
+ */
+public class ClusterCoordinator
+{
+    public static final int CONNECT_TIMEOUT_MS = 30000;
+    /**
+     * How long past the plan's duration an agent may take to reply before it is considered failed
+     */
+    public static final int REPLY_MARGIN_MS = 30000;
+    private static final Set<String> COORDINATOR_OPTIONS = new HashSet<String>(Arrays.asList("agents", "histFile", "binaryHistFile"));
+
+    private final InetSocketAddress[] agents;
+    private final Map<String, String> plan;
+    private final int replyTimeoutMs;
+    private final List<AgentReport> reports = new ArrayList<AgentReport>();
+    private AgentReport total;
+
+    public ClusterCoordinator(InetSocketAddress[] agents, Map<String, String> plan)
+    {
+        if (agents.length == 0)
+            throw new IllegalArgumentException("Cluster mode requires at least one agent.");
+        String duration = plan.get("duration");
+        if (duration == null || Integer.parseInt(duration) <= 0)
+            throw new IllegalArgumentException("Cluster plans require a duration.");
+
+        this.agents = agents;
+        this.plan = plan;
+        this.replyTimeoutMs = Integer.parseInt(duration) * 1000 + REPLY_MARGIN_MS;
+    }
+
+    public static InetSocketAddress[] agentAddresses(String s)
+    {
+        String[] split = s.split(",");
+        InetSocketAddress[] addresses = new InetSocketAddress[split.length];
+        for (int i=0; i < split.length; i++)
+            if ((addresses[i] = IOTester.socketAddressFromString(split[i])) == null)
+                throw new IllegalArgumentException("Cannot parse agent address "+ split[i]);
+        return addresses;
+    }
+
+    Map<String, String> planFor(int iAgent)
+    {
+        Map<String, String> agentPlan = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : plan.entrySet())
+        {
+            if (COORDINATOR_OPTIONS.contains(entry.getKey()))
+                continue;
+            String value = entry.getValue().replace("{index}", Integer.toString(iAgent)).replace("{host}", agents[iAgent].getHostString());
+            agentPlan.put(entry.getKey(), value);
+        }
+        //
+        // Agents take their place in a traffic pattern from their place in the agent list, unless told otherwise
+        //
+        if (agentPlan.containsKey("pattern") && ! agentPlan.containsKey("peerIndex"))
+            agentPlan.put("peerIndex", Integer.toString(iAgent));
+        return agentPlan;
+    }
+
+    /**
+     * Distributes the plan, starts every agent once all are ready and waits for their reports.
+     *
+     * @return the cluster report
+     */
+    public String run() throws IOException
+    {
+        Socket[] sockets = new Socket[agents.length];
+        DataInputStream[] in = new DataInputStream[agents.length];
+        DataOutputStream[] out = new DataOutputStream[agents.length];
+        boolean started = false;
+        try
+        {
+            for (int i=0; i < agents.length; i++)
+            {
+                try
+                {
+                    sockets[i] = connect(agents[i]);
+                } catch (IOException e) {
+                    throw agentFailure(i, "connect", e);
+                }
+                sockets[i].setSoTimeout(replyTimeoutMs);
+                in[i] = new DataInputStream(new BufferedInputStream(sockets[i].getInputStream()));
+                out[i] = new DataOutputStream(new BufferedOutputStream(sockets[i].getOutputStream()));
+                ClusterAgent.writePlan(planFor(i), out[i]);
+                out[i].flush();
+            }
+
+            String failure = null;
+            for (int i=0; i < agents.length; i++)
+            {
+                String error;
+                try
+                {
+                    error = in[i].readUTF();
+                } catch (IOException e) {
+                    throw agentFailure(i, "prepare", e);
+                }
+                if (error.length() > 0 && failure == null)
+                    failure = "Agent "+ agents[i] +" failed to prepare: "+ error;
+            }
+
+            //
+            // The barrier: no agent starts until every agent has bound its servers
+            //
+            for (int i=0; i < agents.length; i++)
+            {
+                out[i].writeByte(failure == null ? ClusterAgent.START : ClusterAgent.ABORT);
+                out[i].flush();
+            }
+            started = true;
+            if (failure != null)
+                throw new IOException(failure);
+            System.out.println("Started "+ agents.length +" agents.");
+
+            for (int i=0; i < agents.length; i++)
+            {
+                try
+                {
+                    reports.add(AgentReport.readFrom(in[i]));
+                } catch (IOException e) {
+                    throw agentFailure(i, "report", e);
+                }
+            }
+        } finally {
+            //
+            // Agents that received the plan have bound their servers and wait for the barrier, so they are released on any failure before it
+            //
+            if (! started)
+                abort(out);
+            for (Socket s : sockets)
+                if (s != null)
+                    s.close();
+        }
+
+        merge();
+        return report();
+    }
+
+    private static void abort(DataOutputStream[] out)
+    {
+        for (DataOutputStream agent : out)
+        {
+            if (agent == null)
+                continue;
+            try
+            {
+                agent.writeByte(ClusterAgent.ABORT);
+                agent.flush();
+            } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     * @return an exception naming the agent that closed its connection or did not reply within the reply timeout
+     */
+    private IOException agentFailure(int iAgent, String step, IOException e)
+    {
+        if (e instanceof SocketTimeoutException)
+            return new IOException("Agent "+ agents[iAgent] +" did not "+ step +" within "+ replyTimeoutMs +" ms.", e);
+        return new IOException("Agent "+ agents[iAgent] +" failed to "+ step +": "+ e, e);
+    }
+
+    private static Socket connect(InetSocketAddress address) throws IOException
+    {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+        while (true)
+        {
+            Socket s = new Socket();
+            try
+            {
+                s.connect(address);
+                return s;
+            } catch (ConnectException ce) {
+                s.close();
+                //
+                // Agents may still be starting
+                //
+                if (System.currentTimeMillis() > deadline)
+                    throw ce;
+                try
+                {
+                    Thread.sleep(100);
+                } catch (InterruptedException ie){}
+            }
+        }
+    }
+
+    private void merge()
+    {
+        long totalRead = 0, totalWrite = 0, totalTransactions = 0, elapsedMillis = 0;
+        AgentReport first = reports.get(0);
+        Histogram readHistogram = first.readHistogram().copy(), writeHistogram = first.writeHistogram().copy();
+        LatencyHistogram readLatency = new LatencyHistogram(first.readLatency().title()), writeLatency = new LatencyHistogram(first.writeLatency().title());
+        LatencyHistogram rttLatency = new LatencyHistogram(first.rttLatency().title());
+
+        for (int i=0; i < reports.size(); i++)
+        {
+            AgentReport report = reports.get(i);
+            totalRead += report.totalRead();
+            totalWrite += report.totalWrite();
+            totalTransactions += report.totalTransactions();
+            elapsedMillis = Math.max(elapsedMillis, report.elapsedMillis());
+            if (i > 0)
+            {
+                readHistogram.merge(report.readHistogram());
+                writeHistogram.merge(report.writeHistogram());
+            }
+            readLatency.merge(report.readLatency());
+            writeLatency.merge(report.writeLatency());
+            rttLatency.merge(report.rttLatency());
+        }
+        total = new AgentReport(totalRead, totalWrite, totalTransactions, elapsedMillis, readHistogram, writeHistogram, readLatency, writeLatency, rttLatency, "", sumPhases(), mergeOps());
+    }
+
+    /**
+     * @return the statistics of each type of operation, merged by name over the agents, in name order
+     */
+    private List<OpStats> mergeOps()
+    {
+        SortedMap<String, OpStats> merged = new TreeMap<String, OpStats>();
+        for (AgentReport report : reports)
+            for (OpStats stats : report.ops())
+            {
+                OpStats total = merged.get(stats.op());
+                if (total == null)
+                    merged.put(stats.op(), stats.copy());
+                else
+                    total.merge(stats);
+            }
+        return new ArrayList<OpStats>(merged.values());
+    }
+
+    /**
+     * @return the cluster-wide throughput of each phase, ie. summed over the agents, which all run the same phases
+     */
+    private List<PhaseStats> sumPhases()
+    {
+        SortedMap<Integer, long[]> sums = new TreeMap<Integer, long[]>();
+        for (AgentReport report : reports)
+            for (PhaseStats phase : report.phases())
+            {
+                long[] sum = sums.get(phase.phase());
+                if (sum == null)
+                    sums.put(phase.phase(), sum = new long[3]);
+                sum[0] = Math.max(sum[0], phase.millis());
+                sum[1] += phase.totalRead();
+                sum[2] += phase.totalWrite();
+            }
+
+        List<PhaseStats> phases = new ArrayList<PhaseStats>();
+        for (Map.Entry<Integer, long[]> entry : sums.entrySet())
+            phases.add(new PhaseStats(entry.getKey(), "cluster", entry.getValue()[0], entry.getValue()[1], entry.getValue()[2]));
+        return phases;
+    }
+
+    public List<AgentReport> reports(){return reports;}
+
+    /**
+     * @return the sums of the agents' totals and their merged histograms, null until run() has completed
+     */
+    public AgentReport total(){return total;}
+
+    public String report()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Cluster of "+ agents.length +" agents:\n");
+        sb.append(AgentReport.tableHeader());
+        for (int i=0; i < reports.size(); i++)
+            sb.append(reports.get(i).tableRow(agents[i].toString()));
+        sb.append(total.tableRow("cluster"));
+        sb.append("\n");
+
+        sb.append(total.readHistogram().toString());
+        sb.append(total.writeHistogram().toString());
+        sb.append(total.readLatency().toString());
+        sb.append(total.writeLatency().toString());
+        if (total.rttLatency().getCount() > 0)
+            sb.append(total.rttLatency().toString());
+
+        if (total.phases().size() > 0)
+            sb.append("\nPhases of the traffic pattern:\n"+ IOTester.phaseTable(total.phases()));
+        if (total.ops().size() > 0)
+        {
+            sb.append("\nOperations of the cluster:\n"+ IOTester.opTable(total.ops()));
+            for (OpStats stats : total.ops())
+            {
+                sb.append(stats.rateHistogram().toString());
+                sb.append(stats.latency().toString());
+            }
+        }
+
+        for (int i=0; i < reports.size(); i++)
+        {
+            if (reports.get(i).peerTable().length() > 0)
+                sb.append("\nPeers of agent "+ agents[i] +":\n"+ reports.get(i).peerTable());
+            if (reports.get(i).phases().size() > 0)
+                sb.append("\nPhases of agent "+ agents[i] +":\n"+ IOTester.phaseTable(reports.get(i).phases()));
+            if (reports.get(i).ops().size() > 0)
+                sb.append("\nOperations of agent "+ agents[i] +":\n"+ IOTester.opTable(reports.get(i).ops()));
+        }
+        return sb.toString();
+    }
+}
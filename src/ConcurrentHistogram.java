@@ -0,0 +1,284 @@
+package im.boddy.iotester;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Histogram with the binning and statistics of Histogram, recording into
+ * long counts striped across threads so concurrent add() calls do not
+ * serialize on a lock or on shared cache-lines.
+ */
+public class ConcurrentHistogram
+{
+    /**
+     * Thread safe and lock-free
+     */
+    public static final int DEFAULT_STRIPE_COUNT = Integer.highestOneBit(Math.max(1, Math.min(16, Runtime.getRuntime().availableProcessors())));
+
+    private final AtomicLongArray counts;
+    private final float xMin, xMax, binWidth;
+    private final int nBins, nStripes, stripeLength, underflowBin, overflowBin;
+    private final String title, xTitle, yTitle;
+
+    public ConcurrentHistogram(int nBins, float xMin, float xMax, String title, String xTitle, String yTitle)
+    {
+        this(nBins, xMin, xMax, title, xTitle, yTitle, DEFAULT_STRIPE_COUNT);
+    }
+
+    public ConcurrentHistogram(int nBins, float xMin, float xMax, String title, String xTitle, String yTitle, int nStripes)
+    {
+        if (nBins <=0)
+            throw new IllegalArgumentException("Number of bins must be greater than zero.");
+        if (nStripes <=0)
+            throw new IllegalArgumentException("Number of stripes must be greater than zero.");
+
+        this.binWidth = (xMax - xMin) / nBins;
+        if (binWidth <= 0)
+            throw new IllegalArgumentException("xMin must be less than xMax");
+
+        this.nBins = nBins;
+        this.nStripes = nStripes;
+        this.stripeLength = nBins+2;
+        this.counts = new AtomicLongArray(nStripes * stripeLength);
+        this.xMin = xMin;
+        this.xMax = xMax;
+        this.underflowBin = stripeLength-2;
+        this.overflowBin = stripeLength-1;
+
+        this.title = title;
+        this.xTitle = xTitle;
+        this.yTitle = yTitle;
+    }
+
+    public int getBin(float val)
+    {
+        if (val < xMin)
+            return underflowBin;
+        if (val >= xMax)
+            return overflowBin;
+
+        return Math.min((int) ((val - xMin) / binWidth), nBins-1);
+    }
+
+    public void add(float val)
+    {
+        add(val, 1);
+    }
+
+    public void add(float val, long weight)
+    {
+        if (weight <=0)
+            throw new IllegalArgumentException("weight must be > 0 .");
+        counts.addAndGet(stripe() * stripeLength + getBin(val), weight);
+    }
+
+    private int stripe()
+    {
+        long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 16)) % nStripes);
+    }
+
+    public float binXval(int iBin)
+    {
+        if (iBin < 0 || iBin >= nBins)
+            throw new IllegalArgumentException("require 0 <= bin < "+ nBins);
+
+        return xMin + binWidth/2 + iBin * binWidth;
+    }
+
+    public long binYval(int iBin)
+    {
+        if (iBin < 0)
+            iBin = underflowBin;
+        else if (iBin >= nBins)
+            iBin = overflowBin;
+
+        long total = 0;
+        for (int iStripe=0; iStripe < nStripes; iStripe++)
+            total += counts.get(iStripe * stripeLength + iBin);
+        return total;
+    }
+
+    public float xMin(){return xMin;}
+    public float xMax(){return xMax;}
+    public float binWidth(){return binWidth;}
+    public int nBins(){return nBins;}
+    public String title(){return title;}
+    public String xTitle(){return xTitle;}
+    public String yTitle(){return yTitle;}
+
+    public long getUnderflow(){return binYval(-1);}
+    public long getOverflow(){return binYval(nBins);}
+
+    /**
+     * @return a point-in-time copy with all counts folded into a single stripe
+     */
+    public long[] binYvals()
+    {
+        long[] vals = new long[stripeLength];
+        for (int iStripe=0; iStripe < nStripes; iStripe++)
+            for (int iBin=0; iBin < stripeLength; iBin++)
+                vals[iBin] += counts.get(iStripe * stripeLength + iBin);
+        return vals;
+    }
+
+    public ConcurrentHistogram snapshot()
+    {
+        ConcurrentHistogram copy = new ConcurrentHistogram(nBins, xMin, xMax, title, xTitle, yTitle, 1);
+        long[] vals = binYvals();
+        for (int iBin=0; iBin < stripeLength; iBin++)
+            copy.counts.set(iBin, vals[iBin]);
+        return copy;
+    }
+
+    /**
+     * Adds all of the other histogram's counts into this one, which requires identical binning.
+     */
+    public void merge(ConcurrentHistogram other)
+    {
+        if (other.nBins != nBins || other.xMin != xMin || other.xMax != xMax)
+            throw new IllegalArgumentException("Cannot merge histograms with different binning.");
+
+        long[] vals = other.binYvals();
+        int offset = stripe() * stripeLength;
+        for (int iBin=0; iBin < stripeLength; iBin++)
+            if (vals[iBin] != 0)
+                counts.addAndGet(offset + iBin, vals[iBin]);
+    }
+
+    public long getCount()
+    {
+        long total = 0;
+        for (long val : binYvals())
+            total += val;
+        return total;
+    }
+
+    public float getAverage()
+    {
+        return (float) average(binYvals());
+    }
+
+    private double average(long[] vals)
+    {
+        double totalWeight = 0, totalVal = 0;
+        for (int i=0;i < nBins; i++)
+        {
+            totalWeight += vals[i];
+            totalVal += binXval(i) * (double) vals[i];
+        }
+
+        if (totalWeight == 0)
+            return 0;
+
+        return totalVal / totalWeight;
+    }
+
+    public float getVariance()
+    {
+        long[] vals = binYvals();
+        double ave = average(vals);
+        double totalWeight = 0, variance = 0;
+
+        for (int i=0;i < nBins; i++)
+        {
+            totalWeight += vals[i];
+            variance += vals[i] * (binXval(i) - ave)*(binXval(i) - ave);
+        }
+
+        if (totalWeight == 0)
+            return 0;
+
+        return (float) (variance / totalWeight);
+    }
+
+    public float[] getOneSigmaInterval()
+    {
+        return getConfidenceLevelInterval(0.68269f);
+    }
+
+    public float[] getTwoSigmaInterval()
+    {
+        return getConfidenceLevelInterval(0.95450f);
+    }
+
+    public float[] getConfidenceLevelInterval(float coverage)
+    {
+        if (coverage < 1e-3 || 1. < coverage)
+            throw new IllegalArgumentException("require 0 < coverage < 1");
+        float[] CLInterval = new float[2];
+        //first element is lower bound
+        //second element is upper bound
+
+        long[] vals = binYvals();
+        long totalWeight = 0;
+        for (int i=0;i < nBins; i++)
+            totalWeight += vals[i];
+
+        if (totalWeight == 0)
+            return CLInterval;
+
+        double targetWeight = totalWeight * (1. - coverage) /2.;
+
+        long weight = 0;
+        for (int i=0;i < nBins; i++)
+            if ((weight += vals[i]) >= targetWeight && weight > 0)
+            {
+                CLInterval[0] = binXval(i);
+                break;
+            }
+
+        weight = 0;
+        for (int i=nBins-1;i >=0 ; i--)
+            if ((weight += vals[i]) >= targetWeight && weight > 0)
+            {
+                CLInterval[1] = binXval(i);
+                break;
+            }
+
+        return CLInterval;
+    }
+
+    public String toString()
+    {
+        ConcurrentHistogram snapshot = snapshot();
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("title : "+ title+"\nxTitle : "+ xTitle +"\nyTitle : "+ yTitle+"\n");
+        sb.append("underflow : "+ snapshot.getUnderflow() + "\noverflow :" + snapshot.getOverflow() +"\n\n");
+        sb.append("average : "+ snapshot.getAverage() +"\n");
+        sb.append("variance : "+ snapshot.getVariance() +"\n");
+        float[] twoSigmaCLInterval = snapshot.getTwoSigmaInterval();
+        sb.append("twoSigmaLowerBound : "+ twoSigmaCLInterval[0]+"\n");
+        sb.append("twoSigmaUpperBound : "+ twoSigmaCLInterval[1]+"\n");
+        for (int iBin=0;iBin < nBins;iBin++)
+            sb.append(binXval(iBin) +" "+ snapshot.binYval(iBin) +"\n");
+
+        return sb.toString();
+    }
+
+    public String toJSONString()
+    {
+        ConcurrentHistogram snapshot = snapshot();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"title\" : \""+title+"\", ");
+        sb.append("\"xTitle\" : \""+xTitle+"\", ");
+        sb.append("\"yTitle\" : \""+yTitle+"\", ");
+        sb.append("\"underflow\" : "+ snapshot.getUnderflow() +", ");
+        sb.append("\"overflow\" : "+ snapshot.getOverflow() +", ");
+        sb.append("\"average\" : "+snapshot.getAverage()+", ");
+        sb.append("\"variance\" : "+snapshot.getVariance()+", ");
+        float[] twoSigmaCLInterval = snapshot.getTwoSigmaInterval();
+        sb.append("\"twoSigmaLowerBound\" : "+ twoSigmaCLInterval[0]+", ");
+        sb.append("\"twoSigmaUpperBound\" : "+ twoSigmaCLInterval[1]+", ");
+        sb.append("\"binVals\" : [ \n");
+        for (int iBin=0;iBin < nBins;iBin++)
+        {
+            sb.append("{\"xVal\" : "+ binXval(iBin) +", \"yVal\" : "+ snapshot.binYval(iBin) +"}");
+            if (iBin != nBins-1)
+                sb.append(",");
+            sb.append("\n");
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,43 @@
+package im.boddy.iotester;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.nio.*;
+
+/**
+ * Recycles direct buffers of a fixed size so that I/O end-points can avoid
+ * both heap copies and the cost of repeatedly allocating native memory.
+ */
+public class DirectBufferPool
+{
+    /**
+     * Thread safe
+     */
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final int bufferSize;
+
+    public DirectBufferPool(int bufferSize)
+    {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Buffer size must be greater than zero.");
+        this.bufferSize = bufferSize;
+    }
+
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer)
+    {
+        if (buffer == null || ! buffer.isDirect() || buffer.capacity() != bufferSize)
+            throw new IllegalArgumentException("Buffer was not acquired from this pool.");
+        free.offer(buffer);
+    }
+
+    public int bufferSize(){return bufferSize;}
+}
@@ -1,36 +1,48 @@
 package im.boddy.iotester;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 import java.net.*;
 import java.io.*;
 import java.nio.*;
+import java.nio.file.*;
 
 
 import java.nio.channels.*;
+import com.sun.nio.file.ExtendedOpenOption;
 ////test comment from android
 
 public class DiskIOTester extends IOTester
 {
+    public static final long MAX_MAPPED_CHUNK_SIZE = Integer.MAX_VALUE;
+
     /**
-     * Thread safe
+     * Thread confined, apart from close().
      */ 
-    private class Handler implements Runnable
+    abstract class DiskEndPoint implements Runnable
     {
-        private volatile boolean isClosed;
-        private long lastPosition;
+        volatile boolean isClosed;
+        private long lastPosition, readCursor, writeCursor;
+        private OpStats[][] stats;
+        private long writesSinceForce, bytesSinceForce, lastForceTime = System.currentTimeMillis();
 
-        private final byte[] buffer = new byte[bufferSize];
-        private final RandomAccessFile rFile;
-        private final FileChannel channel;
+        final Random random = new Random();
+        final long regionStart, regionSize;
 
-        Handler() throws IOException
+        DiskEndPoint(long regionStart, long regionSize)
         {
-            this.rFile = new RandomAccessFile(f, "rw");
-            this.channel = rFile.getChannel(); 
-            random.nextBytes(buffer);
+            this.regionStart = regionStart;
+            this.regionSize = regionSize;
         }
 
+        abstract void doIO() throws IOException;
+
+        /**
+         * Called by the I/O thread once it has stopped issuing operations.
+         */
+        abstract void release();
+
         public void run()
         {
             while(true)
@@ -45,109 +57,815 @@ public class DiskIOTester extends IOTester
                 } catch (InterruptedException ie){}
             }
 
-            ByteBuffer readBuffer = ByteBuffer.allocate(buffer.length);
-            
             while (! isClosed)
             {
                 try
                 {
-                    synchronized(this)
-                    {
-                        long startPos = nextPosition();
-                        if (reading)
-                        {
-                            int nReadTotal = 0;	
-                            while(readBuffer.hasRemaining())
-                            {
-                                int nRead = channel.read(readBuffer, startPos + nReadTotal);
-                                if (nRead >0)
-                                    nReadTotal += nRead;
-                                else if (nRead == -1)
-                                    break;
-                            }
-                            readBuffer.flip();
-                            readCount.addAndGet(nReadTotal);
-                        }
-                        else
-                        {
-                            int nWrittenTotal =0;
-                            ByteBuffer writeBuffer = ByteBuffer.wrap(buffer);
-                            while (writeBuffer.hasRemaining())
-                            {
-                                int nWritten = channel.write(writeBuffer, startPos + nWrittenTotal);
-                                if (nWritten >0)
-                                    nWrittenTotal += nWritten;
-                            }
-
-                            writeCount.addAndGet(nWrittenTotal);
-                        }
-                    }
-
+                    doIO();
                 } catch (IOException ioe) {
                     ioe.printStackTrace();
                 }
             }
+
+            //
+            // Resources are only released by the I/O thread so that close() never interrupts an operation 
+            //
+            release();
         }
 
-        public synchronized void close()
+        public void close()
         {
-            if (isClosed)
-                return;
             isClosed = true;
-            try
-            {
-                if (channel != null)
-                    channel.close();
-            } catch (IOException ioe){
-                ioe.printStackTrace();
-            }
+        }
+
+        /**
+         * Counts a completed write and, if the forcing cadence is due, forces the writes since the last force to the device.
+         */
+        void written(long bytes) throws IOException
+        {
+            if (! isForcing())
+                return;
+            writesSinceForce++;
+            bytesSinceForce += bytes;
+            if ((forceEvery > 0 && writesSinceForce >= forceEvery) || (forceIntervalMillis > 0 && System.currentTimeMillis() - lastForceTime >= forceIntervalMillis))
+                forceNow();
+        }
+
+        void forceNow() throws IOException
+        {
+            long bytes = bytesSinceForce;
+            writesSinceForce = 0;
+            bytesSinceForce = 0;
+            lastForceTime = System.currentTimeMillis();
+            force(bytes);
+        }
 
+        /**
+         * Forces any writes since the last force once the end-point has stopped, so that the run ends with its writes durable and the final force timed.
+         */
+        void forceRemaining()
+        {
+            if (! isForcing() || writesSinceForce == 0)
+                return;
             try
             {
-                if (rFile != null)
-                    rFile.close();
+                forceNow();
             } catch (IOException ioe){
                 ioe.printStackTrace();
             }
         }
 
-        private synchronized long nextPosition()
+        /**
+         * Makes the writes of this end-point durable.
+         *
+         * @param bytes the number of bytes written since the last force
+         */
+        abstract void force(long bytes) throws IOException;
+
+        long nextPosition()
         {
             long pos = lastPosition;
             if (! randomAccess)
-                pos += buffer.length;
+                pos += bufferSize;
             else
                 pos = random.nextLong();    
 
             if (pos < 0)
                 pos *= -1;
 
-            pos %= (maxSize - buffer.length);
+            pos %= (regionSize - bufferSize);
+            pos -= pos % alignment;
             lastPosition = pos;
-            return pos; 
+            return regionStart + pos; 
+        }
+
+        /**
+         * @return the position of the next operation of the workload, from its own cursor if sequential, otherwise from the workload's skewed distribution
+         */
+        long nextPosition(boolean read, int size)
+        {
+            long pos;
+            if (workload.isRandom(read))
+            {
+                pos = Math.min(sampler.nextSlot(random) * slotSize, regionSize - size);
+                pos -= pos % alignment;
+            }
+            else
+            {
+                pos = read ? readCursor : writeCursor;
+                if (pos + size > regionSize)
+                    pos = 0;
+                if (read)
+                    readCursor = pos + size;
+                else
+                    writeCursor = pos + size;
+            }
+            return regionStart + pos;
+        }
+
+        OpStats opStats(boolean read, int sizeIndex)
+        {
+            if (stats == null)
+                stats = new OpStats[2][workload.blockSizeCount()];
+            OpStats op = stats[read ? 0 : 1][sizeIndex];
+            if (op == null)
+                op = stats[read ? 0 : 1][sizeIndex] = DiskIOTester.this.opStats(workload.opName(read, sizeIndex));
+            return op;
+        }
+    }
+
+    private class Handler extends DiskEndPoint
+    {
+        private final ByteBuffer readBuffer, writeBuffer;
+        private final RandomAccessFile rFile;
+        private final FileChannel channel;
+
+        Handler(long regionStart, long regionSize) throws IOException
+        {
+            super(regionStart, regionSize);
+            if (direct)
+            {
+                this.rFile = null;
+                this.channel = FileChannel.open(f.toPath(), openOptions());
+                this.readBuffer = this.writeBuffer = alignedBuffer(random);
+            }
+            else
+            {
+                this.rFile = new RandomAccessFile(f, "rw");
+                this.channel = rFile.getChannel(); 
+                byte[] buffer = new byte[operationSize()];
+                random.nextBytes(buffer);
+                this.readBuffer = ByteBuffer.allocate(buffer.length);
+                this.writeBuffer = ByteBuffer.wrap(buffer);
+            }
+        }
+
+        void doIO() throws IOException
+        {
+            if (workload == null)
+            {
+                transfer(reading, bufferSize, nextPosition(), null);
+                return;
+            }
+
+            boolean read = workload.nextIsRead(random);
+            int sizeIndex = workload.nextSizeIndex(random);
+            int size = workload.blockSize(sizeIndex);
+            transfer(read, size, nextPosition(read, size), opStats(read, sizeIndex));
+        }
+
+        private void transfer(boolean read, int size, long startPos, OpStats op) throws IOException
+        {
+            long start = startOperation();
+            if (read)
+            {
+                int nReadTotal = 0;	
+                readBuffer.clear().limit(size);
+                while(readBuffer.hasRemaining())
+                {
+                    int nRead = channel.read(readBuffer, startPos + nReadTotal);
+                    if (nRead >0)
+                        nReadTotal += nRead;
+                    else if (nRead == -1)
+                        break;
+                }
+                long latency = System.nanoTime() - start;
+                readLatency.record(latency);
+                readCount.add(nReadTotal);
+                if (op != null)
+                    op.record(latency, nReadTotal);
+            }
+            else
+            {
+                int nWrittenTotal =0;
+                writeBuffer.clear().limit(size);
+                while (writeBuffer.hasRemaining())
+                {
+                    int nWritten = channel.write(writeBuffer, startPos + nWrittenTotal);
+                    if (nWritten >0)
+                        nWrittenTotal += nWritten;
+                }
+
+                long latency = System.nanoTime() - start;
+                writeLatency.record(latency);
+                writeCount.add(nWrittenTotal);
+                if (op != null)
+                    op.record(latency, nWrittenTotal);
+                written(nWrittenTotal);
+            }
+        }
+
+        void force(long bytes) throws IOException
+        {
+            DiskIOTester.this.force(channel, bytes);
+        }
+
+        void release()
+        {
+            forceRemaining();
+            try
+            {
+                channel.close();
+            } catch (IOException ioe){
+                ioe.printStackTrace();
+            }
+
+            if (rFile == null)
+                return;
+            try
+            {
+                rFile.close();
+            } catch (IOException ioe){
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Keeps asyncDepth operations in flight from a single submitting thread.
+     */
+    private class AsyncHandler extends DiskEndPoint implements CompletionHandler<Integer, AsyncHandler.Operation>
+    {
+        class Operation
+        {
+            final ByteBuffer buffer;
+            long position, start;
+            boolean read;
+            OpStats op;
+
+            Operation(ByteBuffer buffer)
+            {
+                this.buffer = buffer;
+            }
+        }
+
+        private final AsynchronousFileChannel channel;
+        private final BlockingQueue<Operation> idle;
+        //
+        // A permit per idle operation, returned by the completion handlers, so that release() can wait for those in flight
+        //
+        private final Semaphore idlePermits;
+
+        AsyncHandler(long regionStart, long regionSize) throws IOException
+        {
+            super(regionStart, regionSize);
+            this.channel = AsynchronousFileChannel.open(f.toPath(), openOptions());
+            this.idle = new ArrayBlockingQueue<Operation>(asyncDepth);
+            this.idlePermits = new Semaphore(asyncDepth);
+            for (int i=0; i < asyncDepth; i++)
+            {
+                ByteBuffer buffer;
+                if (direct)
+                    buffer = alignedBuffer(random);
+                else
+                {
+                    buffer = ByteBuffer.allocate(operationSize());
+                    random.nextBytes(buffer.array());
+                }
+                idle.add(new Operation(buffer));
+            }
+        }
+
+        void doIO() throws IOException
+        {
+            Operation op;
+            try
+            {
+                op = idle.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                return;
+            }
+            if (op == null)
+                return;
+            idlePermits.acquireUninterruptibly();
+
+            if (workload == null)
+            {
+                op.read = reading;
+                op.position = nextPosition();
+                op.buffer.clear().limit(bufferSize);
+            }
+            else
+            {
+                op.read = workload.nextIsRead(random);
+                int sizeIndex = workload.nextSizeIndex(random);
+                int size = workload.blockSize(sizeIndex);
+                op.position = nextPosition(op.read, size);
+                op.op = opStats(op.read, sizeIndex);
+                op.buffer.clear().limit(size);
+            }
+            op.start = startOperation();
+            submit(op);
+        }
+
+        private void submit(Operation op)
+        {
+            long position = op.position + op.buffer.position();
+            if (op.read)
+                channel.read(op.buffer, position, op, this);
+            else
+                channel.write(op.buffer, position, op, this);
+        }
+
+        public void completed(Integer result, Operation op)
+        {
+            if (result > 0 && op.buffer.hasRemaining())
+            {
+                //
+                // Short transfer: continue the same operation from where it stopped
+                //
+                submit(op);
+                return;
+            }
+
+            long latency = System.nanoTime() - op.start;
+            if (op.read)
+            {
+                readLatency.record(latency);
+                readCount.add(op.buffer.position());
+            }
+            else
+            {
+                writeLatency.record(latency);
+                writeCount.add(op.buffer.position());
+            }
+            if (op.op != null)
+                op.op.record(latency, op.buffer.position());
+            if (! op.read)
+            {
+                //
+                // Completions run concurrently on the channel's threads
+                //
+                try
+                {
+                    synchronized (this)
+                    {
+                        written(op.buffer.position());
+                    }
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+            idle.add(op);
+            idlePermits.release();
+        }
+
+        void force(long bytes) throws IOException
+        {
+            DiskIOTester.this.force(channel, bytes);
+        }
+
+        public void failed(Throwable t, Operation op)
+        {
+            t.printStackTrace();
+            idle.add(op);
+            idlePermits.release();
+        }
+
+        void release()
+        {
+            //
+            // Wait for every in-flight operation to complete before closing the channel
+            //
+            try
+            {
+                idlePermits.tryAcquire(asyncDepth, 10, TimeUnit.SECONDS);
+            } catch (InterruptedException ie){}
+            forceRemaining();
+
+            try
+            {
+                channel.close();
+            } catch (IOException ioe){
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reads and writes through MappedByteBuffers covering the handler's region.
+     */
+    private class MappedHandler extends DiskEndPoint
+    {
+        private final byte[] buffer = new byte[bufferSize];
+        private final RandomAccessFile rFile;
+        private final FileChannel channel;
+        private final MappedByteBuffer[] chunks;
+        private final boolean[] dirty;
+        private final long chunkSize;
+
+        MappedHandler(long regionStart, long regionSize) throws IOException
+        {
+            super(regionStart, regionSize);
+            if (reading && f.length() < regionStart + regionSize)
+                throw new IOException("Cannot map file "+ f +" for reading: it is shorter than "+ (regionStart + regionSize) +" bytes.");
+
+            this.rFile = new RandomAccessFile(f, "rw");
+            this.channel = rFile.getChannel();
+            this.chunkSize = Math.min(regionSize, MAX_MAPPED_CHUNK_SIZE);
+
+            int nChunks = (int) ((regionSize + chunkSize - 1) / chunkSize);
+            this.chunks = new MappedByteBuffer[nChunks];
+            this.dirty = new boolean[nChunks];
+            FileChannel.MapMode mode = reading ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+            for (int i=0; i < nChunks; i++)
+            {
+                long offset = i * chunkSize;
+                chunks[i] = channel.map(mode, regionStart + offset, Math.min(chunkSize, regionSize - offset));
+            }
+            random.nextBytes(buffer);
+        }
+
+        void doIO() throws IOException
+        {
+            long offset = nextPosition() - regionStart;
+            long start = startOperation();
+            int nTotal = 0;
+
+            //
+            // An operation may straddle two chunks
+            //
+            while (nTotal < buffer.length)
+            {
+                int iChunk = (int) ((offset + nTotal) / chunkSize);
+                int chunkOffset = (int) ((offset + nTotal) % chunkSize);
+                MappedByteBuffer chunk = chunks[iChunk];
+                int length = Math.min(buffer.length - nTotal, chunk.capacity() - chunkOffset);
+
+                chunk.position(chunkOffset);
+                if (reading)
+                    chunk.get(buffer, nTotal, length);
+                else
+                {
+                    chunk.put(buffer, nTotal, length);
+                    dirty[iChunk] = true;
+                }
+                nTotal += length;
+            }
+
+            long latency = System.nanoTime() - start;
+            if (reading)
+            {
+                readLatency.record(latency);
+                readCount.add(nTotal);
+            }
+            else
+            {
+                writeLatency.record(latency);
+                writeCount.add(nTotal);
+                written(nTotal);
+            }
+        }
+
+        void force(long bytes)
+        {
+            long start = System.nanoTime();
+            for (int i=0; i < chunks.length; i++)
+                if (dirty[i])
+                {
+                    chunks[i].force();
+                    dirty[i] = false;
+                }
+            forceStats.record(System.nanoTime() - start, bytes);
+        }
+
+        void release()
+        {
+            forceRemaining();
+
+            try
+            {
+                channel.close();
+            } catch (IOException ioe){
+                ioe.printStackTrace();
+            }
+
+            try
+            {
+                rFile.close();
+            } catch (IOException ioe){
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * An append-only log of segment files, named after the file path with a sequence number suffix, which every
+     * log handler appends records to. An append reserves its space in the current segment without locking, and
+     * the writer whose reservation overflows the segment rolls the log to a new one.
+     */
+    private class Log
+    {
+        class Segment
+        {
+            final int index;
+            final File file;
+            final FileChannel channel;
+            final AtomicLong reserved = new AtomicLong();
+            //
+            // Writers with a reservation that fits, the segment is only closed once there are none
+            //
+            final AtomicInteger writers = new AtomicInteger();
+            //
+            // Each segment batches its own forces, since a force of one segment does not cover writes to another
+            //
+            final GroupCommit commit = groupCommit != null ? new GroupCommit() : null;
+
+            Segment(int index) throws IOException
+            {
+                this.index = index;
+                this.file = new File(String.format("%s.%08d", f.getPath(), index));
+                file.delete();
+                if (preallocate)
+                {
+                    RandomAccessFile rFile = new RandomAccessFile(file, "rw");
+                    try
+                    {
+                        rFile.setLength(segmentSize);
+                    } finally {
+                        rFile.close();
+                    }
+                }
+                this.channel = FileChannel.open(file.toPath(), logOptions());
+            }
+
+            /**
+             * Forces the appends completed so far, unless the segment was already rolled, forced and retired.
+             */
+            void force(long bytes) throws IOException
+            {
+                try
+                {
+                    if (commit != null)
+                        commit.sync(channel, bytes);
+                    else
+                        timedForce(channel, bytes);
+                } catch (ClosedChannelException cce) {}
+            }
+
+            void close()
+            {
+                try
+                {
+                    channel.close();
+                } catch (IOException ioe){
+                    ioe.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Guarded by this, apart from current which is read by every appending writer.
+         */
+        private final Deque<Segment> segments = new ArrayDeque<Segment>();
+        private volatile Segment current;
+        private int openHandlers;
+
+        Log(int handlerCount) throws IOException
+        {
+            this.openHandlers = handlerCount;
+            this.current = new Segment(0);
+            segments.add(current);
+        }
+
+        /**
+         * @return the segment the record was written to
+         */
+        Segment append(ByteBuffer record) throws IOException
+        {
+            int size = record.remaining();
+            while (true)
+            {
+                Segment segment = current;
+                segment.writers.incrementAndGet();
+                try
+                {
+                    long offset = segment.reserved.getAndAdd(size);
+                    if (offset + size <= segmentSize)
+                    {
+                        int nWrittenTotal = 0;
+                        while (record.hasRemaining())
+                            nWrittenTotal += segment.channel.write(record, offset + nWrittenTotal);
+                        return segment;
+                    }
+                } finally {
+                    segment.writers.decrementAndGet();
+                }
+                roll(segment);
+            }
+        }
+
+        private synchronized void roll(Segment full) throws IOException
+        {
+            if (current != full)
+                return;
+
+            long start = System.nanoTime();
+            current = new Segment(full.index + 1);
+            segments.add(current);
+
+            //
+            // Once its last writes complete, the full segment is forced, as logs do when rolling, since later forces only cover the new segment
+            //
+            if (isForcing())
+            {
+                while (full.writers.get() > 0)
+                    Thread.yield();
+                timedForce(full.channel, 0);
+            }
+            rollStats.record(System.nanoTime() - start, 0);
+
+            while (segments.size() > retainedSegments && segments.peekFirst().writers.get() == 0)
+            {
+                Segment oldest = segments.removeFirst();
+                oldest.close();
+                oldest.file.delete();
+            }
+        }
+
+        synchronized void handlerReleased()
+        {
+            if (--openHandlers > 0)
+                return;
+            for (Segment segment : segments)
+                segment.close();
+        }
+    }
+
+    /**
+     * Appends windowSize records to the shared log.
+     */
+    private class LogHandler extends DiskEndPoint
+    {
+        private final ByteBuffer record;
+        //
+        // The segments appended to since the last force, usually only the current one
+        //
+        private final Set<Log.Segment> unforced = new LinkedHashSet<Log.Segment>();
+
+        LogHandler()
+        {
+            super(0, segmentSize);
+            if (direct)
+                this.record = alignedBuffer(random);
+            else
+            {
+                byte[] buffer = new byte[bufferSize];
+                random.nextBytes(buffer);
+                this.record = ByteBuffer.wrap(buffer);
+            }
+        }
+
+        void doIO() throws IOException
+        {
+            long start = startOperation();
+            record.clear();
+            unforced.add(log.append(record));
+
+            long latency = System.nanoTime() - start;
+            writeLatency.record(latency);
+            writeCount.add(bufferSize);
+            appendStats.record(latency, bufferSize);
+            written(bufferSize);
+        }
+
+        void force(long bytes) throws IOException
+        {
+            for (Log.Segment segment : unforced)
+            {
+                segment.force(bytes);
+                bytes = 0;
+            }
+            unforced.clear();
+        }
+
+        void release()
+        {
+            forceRemaining();
+            log.handlerReleased();
         }
     }
 
-    private Handler handler;
+    private DiskEndPoint[] handlers;
 
     private final File f;
-    private final boolean reading, randomAccess;
+    private final boolean reading, randomAccess, sharedRegion, mmap;
     private final long maxSize;
+    private final int threadCount, asyncDepth, forceEvery;
+    private boolean direct;
+    private int alignment = 1;
+    private DiskWorkload workload;
+    private DiskWorkload.Sampler sampler;
+    private long slotSize;
+    private long forceIntervalMillis;
+    private boolean forceMetadata = true;
+    private GroupCommit groupCommit;
+    private OpStats forceStats, commitStats;
+    private boolean appendLog, preallocate;
+    private int retainedSegments;
+    private long segmentSize;
+    private Log log;
+    private OpStats appendStats, rollStats;
+
+    /**
+     * Batches the forces of concurrent writers, as databases do for their logs: a writer waits for a force that
+     * started after its write, and a writer that finds no force in progress forces on behalf of every writer queued so far.
+     */
+    private class GroupCommit
+    {
+        /**
+         * Thread safe
+         */
+        private long requested, completed, pendingBytes;
+        private boolean forcing;
+
+        void sync(Channel channel, long bytes) throws IOException
+        {
+            long start = System.nanoTime();
+            long ticket, batch, batchBytes;
+            synchronized (this)
+            {
+                ticket = ++requested;
+                pendingBytes += bytes;
+                while (forcing && completed < ticket)
+                {
+                    try
+                    {
+                        wait();
+                    } catch (InterruptedException ie){}
+                }
+                if (completed >= ticket)
+                {
+                    commitStats.record(System.nanoTime() - start, bytes);
+                    return;
+                }
+                forcing = true;
+                batch = requested;
+                batchBytes = pendingBytes;
+                pendingBytes = 0;
+            }
+
+            boolean forced = false;
+            try
+            {
+                timedForce(channel, batchBytes);
+                forced = true;
+            } finally {
+                synchronized (this)
+                {
+                    forcing = false;
+                    if (forced)
+                        completed = batch;
+                    else
+                        pendingBytes += batchBytes;
+                    notifyAll();
+                }
+            }
+            commitStats.record(System.nanoTime() - start, bytes);
+        }
+    }
 
 
     DiskIOTester(int duration, int bufferSize, String filePath, boolean reading, long maxSize, boolean randomAccess) throws IOException
+    {
+        this(duration, bufferSize, filePath, reading, maxSize, randomAccess, 1, true, 0, false, 0);
+    }
+
+    /**
+     * @param threadCount number of independent handlers, ie. the queue depth offered to the device
+     * @param sharedRegion if true every handler addresses the whole file, otherwise each handler owns a disjoint maxSize/threadCount region
+     * @param asyncDepth if greater than zero, each handler is an AsynchronousFileChannel submitter keeping this many operations in flight
+     * @param mmap if true, each handler maps its region and transfers through MappedByteBuffers
+     * @param forceEvery if greater than zero, each handler forces its writes to the device every forceEvery writes
+     */
+    public DiskIOTester(int duration, int bufferSize, String filePath, boolean reading, long maxSize, boolean randomAccess, int threadCount, boolean sharedRegion, int asyncDepth, boolean mmap, int forceEvery) throws IOException
     {
         super(duration, bufferSize);
 
+        if (threadCount <= 0)
+            throw new IllegalArgumentException("Number of disk threads must be greater than zero.");
+        if (asyncDepth < 0)
+            throw new IllegalArgumentException("Asynchronous queue depth must not be negative.");
+        if (asyncDepth > 0 && mmap)
+            throw new IllegalArgumentException("Asynchronous and memory-mapped modes are exclusive.");
+        long regionSize = sharedRegion ? maxSize : maxSize / threadCount;
+        if (regionSize <= bufferSize)
+            throw new IllegalArgumentException("Each disk thread requires a region larger than the I/O operation size, but region-size is "+ regionSize);
+
         this.f = new File(filePath);
         this.reading = reading;
         this.randomAccess = randomAccess;
         this.maxSize = maxSize;
+        this.threadCount = threadCount;
+        this.sharedRegion = sharedRegion;
+        this.asyncDepth = asyncDepth;
+        this.mmap = mmap;
+        this.forceEvery = forceEvery;
 
         if (reading)
         {
             if (! f.exists())
-                throw new IOException("Cannot use file "+ f + ": file already exists.");
+                throw new IOException("Cannot use file "+ f + ": file does not exist.");
         }
         else
         {
@@ -158,24 +876,273 @@ public class DiskIOTester extends IOTester
         }
     }    
 
+    /**
+     * Opens the file with O_DIRECT, bypassing the page cache, so that rates and latencies are those of the device.
+     * Buffers, positions and region boundaries are then aligned to the block size of the file's store, which the
+     * I/O operation size must be a multiple of.
+     */
+    public synchronized void setDirect(boolean direct) throws IOException
+    {
+        if (handlers != null)
+            throw new IllegalStateException("Direct I/O must be selected before the test starts.");
+        if (direct && mmap)
+            throw new IllegalArgumentException("Direct I/O and memory-mapped modes are exclusive.");
+
+        int alignment = 1;
+        if (direct)
+        {
+            alignment = (int) Files.getFileStore(f.toPath()).getBlockSize();
+            checkAlignment(workload, alignment);
+            if (regionSize() - regionSize() % alignment <= operationSize())
+                throw new IllegalArgumentException("Each disk thread requires a block-aligned region larger than the I/O operation size.");
+
+            //
+            // Fail now, rather than in every handler, where the file-system does not support O_DIRECT
+            //
+            FileChannel.open(f.toPath(), openOptions(true)).close();
+        }
+        this.direct = direct;
+        this.alignment = alignment;
+    }
+
+    public boolean isDirect(){return direct;}
+
+    /**
+     * Replaces the fixed read or write operations with a mix of operation types. Each type's rate and latency are
+     * also recorded separately, and the mix's reads and writes go to the read and write histograms.
+     */
+    public synchronized void setWorkload(DiskWorkload workload)
+    {
+        if (handlers != null)
+            throw new IllegalStateException("The workload must be set before the test starts.");
+        if (workload != null && mmap)
+            throw new IllegalArgumentException("Mixed workloads are not supported in memory-mapped mode.");
+        checkAlignment(workload, alignment);
+        long regionSize = regionSize();
+        if (workload != null && regionSize <= workload.maxBlockSize())
+            throw new IllegalArgumentException("Each disk thread requires a region larger than the largest block size, but region-size is "+ regionSize);
+        this.workload = workload;
+    }
+
+    public DiskWorkload workload(){return workload;}
+
+    /**
+     * Sets when, besides every forceEvery writes, written data is forced to the device, and how. Force latencies are
+     * recorded separately from write latencies, as the "fsync", "fdatasync" or, for mapped handlers, "msync" operation.
+     *
+     * @param intervalMillis if greater than zero, each handler also forces once this long has passed since its last force
+     * @param metadata if true, file metadata is forced too, ie. fsync rather than fdatasync
+     * @param groupCommit if true, concurrent writers share forces, and the latency from each writer's request to durability is recorded as "group commit"
+     */
+    public synchronized void setForcing(long intervalMillis, boolean metadata, boolean groupCommit)
+    {
+        if (handlers != null)
+            throw new IllegalStateException("Forcing must be set before the test starts.");
+        if (intervalMillis < 0)
+            throw new IllegalArgumentException("Force interval must not be negative.");
+        if (groupCommit && mmap)
+            throw new IllegalArgumentException("Group commit is not supported in memory-mapped mode.");
+        this.forceIntervalMillis = intervalMillis;
+        this.forceMetadata = metadata;
+        this.groupCommit = groupCommit ? new GroupCommit() : null;
+    }
+
+    /**
+     * Replaces the file with an append-only log shared by every disk thread, as written by eg. a broker or a database's
+     * write-ahead log: threads append windowSize records to segments of maxSize bytes, which roll once full.
+     * Appends and segment rolls are reported as operations, ie. in records/sec and MB/sec.
+     *
+     * @param retainedSegments the number of most recent segments kept, older segments are deleted as the log rolls
+     * @param preallocate if true, each new segment is extended to its full size before it is written
+     */
+    public synchronized void setAppendLog(boolean appendLog, int retainedSegments, boolean preallocate)
+    {
+        if (handlers != null)
+            throw new IllegalStateException("The log must be set before the test starts.");
+        if (appendLog && (reading || mmap || asyncDepth > 0 || workload != null))
+            throw new IllegalArgumentException("Append-only logs are only written, by the blocking disk handlers.");
+        if (retainedSegments < 1)
+            throw new IllegalArgumentException("At least one log segment must be retained.");
+        this.appendLog = appendLog;
+        this.retainedSegments = retainedSegments;
+        this.preallocate = preallocate;
+    }
+
+    private OpenOption[] logOptions()
+    {
+        List<OpenOption> options = new ArrayList<OpenOption>(Arrays.asList(openOptions()));
+        options.add(StandardOpenOption.CREATE);
+        return options.toArray(new OpenOption[options.size()]);
+    }
+
+    public boolean isForcing()
+    {
+        return forceEvery > 0 || forceIntervalMillis > 0;
+    }
+
+    private void force(Channel channel, long bytes) throws IOException
+    {
+        if (groupCommit != null)
+            groupCommit.sync(channel, bytes);
+        else
+            timedForce(channel, bytes);
+    }
+
+    private void timedForce(Channel channel, long bytes) throws IOException
+    {
+        long start = System.nanoTime();
+        if (channel instanceof FileChannel)
+            ((FileChannel) channel).force(forceMetadata);
+        else
+            ((AsynchronousFileChannel) channel).force(forceMetadata);
+        forceStats.record(System.nanoTime() - start, bytes);
+    }
+
+    private void checkAlignment(DiskWorkload workload, int alignment)
+    {
+        if (workload == null)
+        {
+            if (bufferSize % alignment != 0)
+                throw new IllegalArgumentException("Direct I/O requires an I/O operation size that is a multiple of the "+ alignment +" byte block size, but it is "+ bufferSize);
+            return;
+        }
+        for (int i=0; i < workload.blockSizeCount(); i++)
+            if (workload.blockSize(i) % alignment != 0)
+                throw new IllegalArgumentException("Direct I/O requires block sizes that are multiples of the "+ alignment +" byte block size, but one is "+ workload.blockSize(i));
+    }
+
+    /**
+     * @return the size of the buffers of each operation, the largest block size of a mixed workload
+     */
+    private int operationSize()
+    {
+        return workload != null ? workload.maxBlockSize() : bufferSize;
+    }
+
+    /**
+     * @return the alignment in bytes of buffers and positions, the file store's block size for direct I/O, otherwise 1
+     */
+    public int alignment(){return alignment;}
+
+    private OpenOption[] openOptions()
+    {
+        return openOptions(direct);
+    }
+
+    private static OpenOption[] openOptions(boolean direct)
+    {
+        if (direct)
+            return new OpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE, ExtendedOpenOption.DIRECT};
+        return new OpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE};
+    }
+
+    /**
+     * @return a direct buffer of random bytes for any operation, whose address is aligned for direct I/O
+     */
+    private ByteBuffer alignedBuffer(Random random)
+    {
+        int size = operationSize();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size + alignment).alignedSlice(alignment).limit(size).slice();
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        buffer.put(bytes);
+        buffer.clear();
+        return buffer;
+    }
+
+    private long regionSize()
+    {
+        long regionSize = sharedRegion ? maxSize : maxSize / threadCount;
+        return regionSize - regionSize % alignment;
+    }
+
     public synchronized void init()
     {
-        if (handler != null)
+        if (handlers != null)
             return;
+        handlers = new DiskEndPoint[threadCount];
         try
         {
-            handler = new Handler();
-            new Thread(handler).start();
+            long regionSize = regionSize();
+            if (isForcing())
+            {
+                forceStats = opStats(mmap ? "msync" : forceMetadata ? "fsync" : "fdatasync");
+                if (groupCommit != null)
+                    commitStats = opStats("group commit");
+            }
+            if (appendLog)
+            {
+                //
+                // The log's segments replace the file
+                //
+                f.delete();
+                segmentSize = maxSize - maxSize % alignment;
+                appendStats = opStats("append "+ DiskWorkload.sizeLabel(bufferSize));
+                rollStats = opStats("segment roll");
+                log = new Log(threadCount);
+            }
+            if (workload != null)
+            {
+                slotSize = Math.max(alignment, workload.minBlockSize());
+                sampler = workload.sampler(regionSize / slotSize);
+                if (workload.readPercent() > 0 && f.length() < maxSize)
+                    fill(f.length(), maxSize);
+            }
+            for (int i=0; i < threadCount; i++)
+            {
+                long regionStart = sharedRegion ? 0 : i * regionSize;
+                if (appendLog)
+                    handlers[i] = new LogHandler();
+                else if (mmap)
+                    handlers[i] = new MappedHandler(regionStart, regionSize);
+                else if (asyncDepth > 0)
+                    handlers[i] = new AsyncHandler(regionStart, regionSize);
+                else
+                    handlers[i] = new Handler(regionStart, regionSize);
+            }
+            for (DiskEndPoint handler : handlers)
+                new Thread(handler).start();
         } catch (IOException ioe) { 
             close();
             throw new IllegalStateException(ioe);
         }
     }
+
+    /**
+     * Writes random data from start up to end and forces it, before the run starts and so untimed. Reads of a new
+     * file would otherwise stop at the end of what has been written so far, and those of a sparse extension would
+     * read holes, which never reach the device.
+     */
+    private void fill(long start, long end) throws IOException
+    {
+        System.out.println("Filling "+ f +" up to "+ end +" bytes for reads.");
+        byte[] bytes = new byte[1024*1024];
+        new Random().nextBytes(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE);
+        try
+        {
+            for (long position = start; position < end; )
+            {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
     public synchronized void close()
     {
         super.close();
-        handler.close();
+        if (handlers == null)
+            return;
+        for (DiskEndPoint handler : handlers)
+            if (handler != null)
+                handler.close();
     }
 
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,250 @@
+package im.boddy.iotester;
+
+import java.util.*;
+
+/**
+ * A mixed disk workload: the fraction of reads, a weighted distribution of operation sizes,
+ * sequential or random positions for each of reads and writes, and the skew of random positions.
+ *
+ * Immutable and thread safe: every choice is drawn from the caller's Random.
+ */
+public class DiskWorkload
+{
+    public enum Skew {UNIFORM, ZIPF, HOTSPOT}
+
+    private final int readPercent;
+    private final int[] blockSizes;
+    private final double[] cumulativeWeights;
+    private final boolean randomReads, randomWrites;
+    private final Skew skew;
+    private final double theta, hotFraction, hotProbability;
+
+    /**
+     * @param readPercent percentage of operations that are reads
+     * @param blockSizes operation sizes in bytes
+     * @param weights relative frequency of each operation size
+     * @param theta zipf exponent, in (0, 1)
+     * @param hotFraction fraction of the file, at its start, that is hot for the hotspot skew
+     * @param hotProbability fraction of random operations addressing the hot blocks for the hotspot skew
+     */
+    public DiskWorkload(int readPercent, int[] blockSizes, double[] weights, boolean randomReads, boolean randomWrites, Skew skew, double theta, double hotFraction, double hotProbability)
+    {
+        if (readPercent < 0 || readPercent > 100)
+            throw new IllegalArgumentException("Read percentage must be between 0 and 100, but is "+ readPercent);
+        if (blockSizes.length == 0 || blockSizes.length != weights.length)
+            throw new IllegalArgumentException("Require one weight for each of at least one block size.");
+        if (skew == Skew.ZIPF && (theta <= 0 || theta >= 1))
+            throw new IllegalArgumentException("Zipf exponent must be between 0 and 1 exclusive, but is "+ theta);
+        if (skew == Skew.HOTSPOT && (hotFraction <= 0 || hotFraction >= 1 || hotProbability < 0 || hotProbability > 1))
+            throw new IllegalArgumentException("Hotspot requires 0 < hot fraction < 1 and 0 <= hot probability <= 1.");
+
+        this.readPercent = readPercent;
+        this.blockSizes = blockSizes.clone();
+        this.cumulativeWeights = new double[weights.length];
+        double sum = 0;
+        for (int i=0; i < weights.length; i++)
+        {
+            if (blockSizes[i] <= 0 || weights[i] < 0)
+                throw new IllegalArgumentException("Block sizes must be positive and weights must not be negative.");
+            sum += weights[i];
+            cumulativeWeights[i] = sum;
+        }
+        if (sum <= 0)
+            throw new IllegalArgumentException("At least one block size must have a positive weight.");
+        for (int i=0; i < weights.length; i++)
+            cumulativeWeights[i] /= sum;
+
+        this.randomReads = randomReads;
+        this.randomWrites = randomWrites;
+        this.skew = skew;
+        this.theta = theta;
+        this.hotFraction = hotFraction;
+        this.hotProbability = hotProbability;
+    }
+
+    /**
+     * @param blockSizes eg. 4k:70,16k:20,1m:10, the weights being optional and otherwise equal
+     * @param skew uniform, zipf:theta or hotspot:fraction:probability, eg. hotspot:0.1:0.9 sends 90% of random operations to the first 10% of the file
+     */
+    public static DiskWorkload parse(int readPercent, String blockSizes, boolean randomReads, boolean randomWrites, String skew)
+    {
+        String[] entries = blockSizes.split(",");
+        int[] sizes = new int[entries.length];
+        double[] weights = new double[entries.length];
+        for (int i=0; i < entries.length; i++)
+        {
+            String[] entry = entries[i].trim().split(":");
+            sizes[i] = parseSize(entry[0]);
+            weights[i] = entry.length > 1 ? Double.parseDouble(entry[1]) : 1;
+        }
+
+        String[] params = skew == null ? new String[]{"uniform"} : skew.split(":");
+        if ("uniform".equals(params[0]))
+            return new DiskWorkload(readPercent, sizes, weights, randomReads, randomWrites, Skew.UNIFORM, 0, 0, 0);
+        if ("zipf".equals(params[0]))
+            return new DiskWorkload(readPercent, sizes, weights, randomReads, randomWrites, Skew.ZIPF, params.length > 1 ? Double.parseDouble(params[1]) : 0.99, 0, 0);
+        if ("hotspot".equals(params[0]))
+            return new DiskWorkload(readPercent, sizes, weights, randomReads, randomWrites, Skew.HOTSPOT, 0,
+                    params.length > 1 ? Double.parseDouble(params[1]) : 0.2, params.length > 2 ? Double.parseDouble(params[2]) : 0.8);
+        throw new IllegalArgumentException("Unknown skew "+ skew +", expected uniform, zipf:theta or hotspot:fraction:probability.");
+    }
+
+    /**
+     * @return the number of bytes of eg. 4096, 4k, 16K or 1m
+     */
+    public static int parseSize(String size)
+    {
+        size = size.trim().toLowerCase();
+        int scale = 1;
+        if (size.endsWith("k"))
+            scale = 1024;
+        else if (size.endsWith("m"))
+            scale = 1024*1024;
+        if (scale > 1)
+            size = size.substring(0, size.length() - 1);
+        return Integer.parseInt(size) * scale;
+    }
+
+    public static String sizeLabel(int size)
+    {
+        if (size % (1024*1024) == 0)
+            return (size / (1024*1024)) +"M";
+        if (size % 1024 == 0)
+            return (size / 1024) +"K";
+        return Integer.toString(size);
+    }
+
+    public boolean nextIsRead(Random random)
+    {
+        return random.nextInt(100) < readPercent;
+    }
+
+    /**
+     * @return the index of the next operation's size
+     */
+    public int nextSizeIndex(Random random)
+    {
+        double u = random.nextDouble();
+        for (int i=0; i < cumulativeWeights.length - 1; i++)
+            if (u < cumulativeWeights[i])
+                return i;
+        return cumulativeWeights.length - 1;
+    }
+
+    public int blockSize(int sizeIndex){return blockSizes[sizeIndex];}
+    public int blockSizeCount(){return blockSizes.length;}
+    public boolean isRandom(boolean read){return read ? randomReads : randomWrites;}
+    public int readPercent(){return readPercent;}
+
+    public int maxBlockSize()
+    {
+        int max = 0;
+        for (int size : blockSizes)
+            max = Math.max(max, size);
+        return max;
+    }
+
+    public int minBlockSize()
+    {
+        int min = Integer.MAX_VALUE;
+        for (int size : blockSizes)
+            min = Math.min(min, size);
+        return min;
+    }
+
+    /**
+     * @return the label of one type of operation, eg. "random read 4K"
+     */
+    public String opName(boolean read, int sizeIndex)
+    {
+        return (isRandom(read) ? "random " : "sequential ") + (read ? "read " : "write ") + sizeLabel(blockSizes[sizeIndex]);
+    }
+
+    public String describe()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(readPercent +"% reads ("+ (randomReads ? "random" : "sequential") +"), "+ (100 - readPercent) +"% writes ("+ (randomWrites ? "random" : "sequential") +") of ");
+        double previous = 0;
+        for (int i=0; i < blockSizes.length; i++)
+        {
+            sb.append((i > 0 ? ", " : "") + sizeLabel(blockSizes[i]) +" "+ Math.round((cumulativeWeights[i] - previous) * 100) +"%");
+            previous = cumulativeWeights[i];
+        }
+        if (skew == Skew.ZIPF)
+            sb.append(", random positions zipf distributed with exponent "+ theta);
+        else if (skew == Skew.HOTSPOT)
+            sb.append(", "+ Math.round(hotProbability * 100) +"% of random operations on the first "+ Math.round(hotFraction * 100) +"% of the file");
+        return sb.toString();
+    }
+
+    /**
+     * @return a generator of random slots, ie. positions in units of a fixed slot size, with this workload's skew
+     */
+    public Sampler sampler(long slotCount)
+    {
+        return new Sampler(slotCount);
+    }
+
+    /**
+     * Immutable and thread safe.
+     */
+    public class Sampler
+    {
+        private final long n;
+        private final double zetan, alpha, eta;
+
+        Sampler(long n)
+        {
+            if (n <= 0)
+                throw new IllegalArgumentException("Require at least one slot.");
+            this.n = n;
+            if (skew == Skew.ZIPF)
+            {
+                //
+                // Gray et al., Quickly generating billion-record synthetic databases: ranks by a one-off zeta sum,
+                // so that each draw costs O(1)
+                //
+                this.zetan = zeta(n, theta);
+                this.alpha = 1 / (1 - theta);
+                this.eta = (1 - Math.pow(2. / n, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+            }
+            else
+                this.zetan = this.alpha = this.eta = 0;
+        }
+
+        public long nextSlot(Random random)
+        {
+            switch (skew)
+            {
+                case ZIPF:
+                    double u = random.nextDouble(), uz = u * zetan;
+                    if (uz < 1)
+                        return 0;
+                    if (uz < 1 + Math.pow(0.5, theta))
+                        return Math.min(1, n - 1);
+                    return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+                case HOTSPOT:
+                    long hot = Math.max(1, (long) (n * hotFraction));
+                    if (random.nextDouble() < hotProbability || hot >= n)
+                        return uniform(random, hot);
+                    return hot + uniform(random, n - hot);
+                default:
+                    return uniform(random, n);
+            }
+        }
+    }
+
+    private static long uniform(Random random, long bound)
+    {
+        long value = random.nextLong() % bound;
+        return value < 0 ? -value : value;
+    }
+
+    private static double zeta(long n, double theta)
+    {
+        double sum = 0;
+        for (long i=1; i <= n; i++)
+            sum += 1 / Math.pow(i, theta);
+        return sum;
+    }
+}
@@ -0,0 +1,336 @@
+package im.boddy.iotester;
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+
+/**
+ * A metadata-heavy workload of many small files: threads create, read, overwrite, stat, rename and
+ * delete files spread over a tree of directories, and the rate and latency of each type of operation is
+ * reported. Every thread works on its own files, so that operations never race each other.
+ */
+public class FileTreeIOTester extends IOTester
+{
+    public enum Op {CREATE, READ, WRITE, STAT, RENAME, DELETE}
+
+    public static final String DEFAULT_MIX = "create:20,read:25,write:15,stat:20,rename:10,delete:10";
+
+    /**
+     * Thread confined, apart from close().
+     */
+    private class Worker implements Runnable
+    {
+        volatile boolean isClosed;
+
+        private final int id;
+        private final Random random = new Random();
+        private final List<Path> files = new ArrayList<Path>();
+        private final ByteBuffer buffer;
+        private final OpStats[] stats = new OpStats[Op.values().length];
+        private long created;
+
+        Worker(int id)
+        {
+            this.id = id;
+            byte[] bytes = new byte[bufferSize];
+            random.nextBytes(bytes);
+            this.buffer = ByteBuffer.wrap(bytes);
+            for (Op op : Op.values())
+                stats[op.ordinal()] = opStats(op.name().toLowerCase());
+        }
+
+        public void run()
+        {
+            while(true)
+            {
+                try
+                {
+                    //
+                    // Dont start I/O operations until the timer is started
+                    //
+                    latch.await();
+                    break;
+                } catch (InterruptedException ie){}
+            }
+
+            while (! isClosed)
+            {
+                try
+                {
+                    doIO(nextOp());
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+
+            //
+            // Not timed: the tree is left as it was found
+            //
+            for (Path file : files)
+            {
+                try
+                {
+                    Files.deleteIfExists(file);
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+            workerFinished();
+        }
+
+        /**
+         * @return the next operation of the mix, a create if there is no file to operate on and a delete if the thread has its share of maxFiles
+         */
+        private Op nextOp()
+        {
+            double u = random.nextDouble();
+            Op op = Op.values()[Op.values().length - 1];
+            for (int i=0; i < cumulativeWeights.length; i++)
+                if (u < cumulativeWeights[i])
+                {
+                    op = Op.values()[i];
+                    break;
+                }
+
+            if (files.isEmpty())
+                return Op.CREATE;
+            if (op == Op.CREATE && files.size() >= maxFiles / threadCount)
+                return Op.DELETE;
+            return op;
+        }
+
+        private void doIO(Op op) throws IOException
+        {
+            int iFile = files.isEmpty() ? -1 : random.nextInt(files.size());
+            long bytes = 0;
+            long start = startOperation();
+            switch (op)
+            {
+                case CREATE:
+                    Path file = randomDirectory(random).resolve(runId +"-"+ id +"-"+ (created++));
+                    FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                    try
+                    {
+                        buffer.clear();
+                        while (buffer.hasRemaining())
+                            bytes += out.write(buffer);
+                    } finally {
+                        out.close();
+                    }
+                    files.add(file);
+                    writeCount.add(bytes);
+                    break;
+                case READ:
+                    FileChannel in = FileChannel.open(files.get(iFile), StandardOpenOption.READ);
+                    try
+                    {
+                        buffer.clear();
+                        int nRead;
+                        while (buffer.hasRemaining() && (nRead = in.read(buffer)) != -1)
+                            bytes += nRead;
+                    } finally {
+                        in.close();
+                    }
+                    readCount.add(bytes);
+                    break;
+                case WRITE:
+                    //
+                    // Overwrites the file in place, so that it keeps its size
+                    //
+                    FileChannel existing = FileChannel.open(files.get(iFile), StandardOpenOption.WRITE);
+                    try
+                    {
+                        buffer.clear();
+                        while (buffer.hasRemaining())
+                            bytes += existing.write(buffer, bytes);
+                    } finally {
+                        existing.close();
+                    }
+                    writeCount.add(bytes);
+                    break;
+                case STAT:
+                    Files.readAttributes(files.get(iFile), BasicFileAttributes.class);
+                    break;
+                case RENAME:
+                    Path renamed = randomDirectory(random).resolve(files.get(iFile).getFileName());
+                    if (! renamed.equals(files.get(iFile)))
+                        Files.move(files.get(iFile), renamed, StandardCopyOption.ATOMIC_MOVE);
+                    files.set(iFile, renamed);
+                    break;
+                case DELETE:
+                    Files.delete(files.get(iFile));
+                    //
+                    // Swap with the last file to remove in constant time
+                    //
+                    files.set(iFile, files.get(files.size() - 1));
+                    files.remove(files.size() - 1);
+                    break;
+            }
+            stats[op.ordinal()].record(System.nanoTime() - start, bytes);
+            transactionCount.increment();
+        }
+
+        public void close()
+        {
+            isClosed = true;
+        }
+    }
+
+    private Worker[] workers;
+    private int runningWorkers;
+    private final List<Path> directories = new ArrayList<Path>();
+
+    //
+    // Names files apart from those of any earlier run left in the tree
+    //
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final Path root;
+    private final int fanOut, depth, threadCount, maxFiles;
+    private final double[] cumulativeWeights;
+
+    /**
+     * @param fileSize the size of each created file
+     * @param fanOut the number of subdirectories of each directory of the tree
+     * @param depth the number of levels of subdirectories, files are spread over the fanOut^depth directories of the last level
+     * @param maxFiles once this many files exist, creates become deletes
+     * @param mix the relative weight of each operation, in the order of Op
+     */
+    public FileTreeIOTester(int duration, int fileSize, String rootPath, int fanOut, int depth, int threadCount, int maxFiles, double[] mix)
+    {
+        super(duration, fileSize);
+
+        if (fileSize < 0)
+            throw new IllegalArgumentException("File size must not be negative.");
+        if (fanOut <= 0 || depth < 0)
+            throw new IllegalArgumentException("Require a fan-out greater than zero and a depth of at least zero.");
+        if (threadCount <= 0)
+            throw new IllegalArgumentException("Number of threads must be greater than zero.");
+        if (maxFiles < threadCount)
+            throw new IllegalArgumentException("Require at least one file per thread.");
+        if (mix.length != Op.values().length)
+            throw new IllegalArgumentException("Require a weight for each of "+ Arrays.toString(Op.values()));
+
+        this.root = Paths.get(rootPath);
+        this.fanOut = fanOut;
+        this.depth = depth;
+        this.threadCount = threadCount;
+        this.maxFiles = maxFiles;
+        this.cumulativeWeights = new double[mix.length];
+        double sum = 0;
+        for (int i=0; i < mix.length; i++)
+        {
+            if (mix[i] < 0)
+                throw new IllegalArgumentException("Operation weights must not be negative.");
+            sum += mix[i];
+            cumulativeWeights[i] = sum;
+        }
+        if (sum <= 0)
+            throw new IllegalArgumentException("At least one operation must have a positive weight.");
+        for (int i=0; i < mix.length; i++)
+            cumulativeWeights[i] /= sum;
+    }
+
+    /**
+     * @param mix eg. create:20,read:25,write:15,stat:20,rename:10,delete:10, operations that are not listed have no weight
+     * @return the weight of each operation, in the order of Op
+     */
+    public static double[] parseMix(String mix)
+    {
+        double[] weights = new double[Op.values().length];
+        for (String entry : mix.split(","))
+        {
+            String[] params = entry.trim().split(":");
+            Op op;
+            try
+            {
+                op = Op.valueOf(params[0].toUpperCase());
+            } catch (IllegalArgumentException iae) {
+                throw new IllegalArgumentException("Unknown operation "+ params[0] +", expected one of create, read, write, stat, rename or delete.");
+            }
+            weights[op.ordinal()] = params.length > 1 ? Double.parseDouble(params[1]) : 1;
+        }
+        return weights;
+    }
+
+    private Path randomDirectory(Random random)
+    {
+        return directories.get(random.nextInt(directories.size()));
+    }
+
+    /**
+     * Creates any missing directories of the tree, breadth first, returning those of the last level.
+     */
+    private List<Path> createTree() throws IOException
+    {
+        List<Path> level = new ArrayList<Path>(Collections.singletonList(root));
+        Files.createDirectories(root);
+        for (int d=0; d < depth; d++)
+        {
+            List<Path> next = new ArrayList<Path>();
+            for (Path directory : level)
+                for (int i=0; i < fanOut; i++)
+                {
+                    Path child = directory.resolve("d"+ i);
+                    if (! Files.isDirectory(child))
+                        Files.createDirectory(child);
+                    next.add(child);
+                }
+            level = next;
+        }
+        return level;
+    }
+
+    private synchronized void workerFinished()
+    {
+        if (--runningWorkers > 0)
+            return;
+        //
+        // Remove the directories created for the test, deepest first, unless they hold other files
+        //
+        for (Path directory : directories)
+            for (Path path = directory; ! path.equals(root) && path.startsWith(root); path = path.getParent())
+            {
+                try
+                {
+                    Files.deleteIfExists(path);
+                } catch (DirectoryNotEmptyException dnee) {
+                    break;
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                    break;
+                }
+            }
+    }
+
+    public synchronized void init()
+    {
+        if (workers != null)
+            return;
+        try
+        {
+            directories.addAll(createTree());
+        } catch (IOException ioe) {
+            close();
+            throw new IllegalStateException(ioe);
+        }
+
+        workers = new Worker[threadCount];
+        for (int i=0; i < threadCount; i++)
+            workers[i] = new Worker(i);
+        runningWorkers = threadCount;
+        for (Worker worker : workers)
+            new Thread(worker).start();
+    }
+
+    public synchronized void close()
+    {
+        super.close();
+        if (workers == null)
+            return;
+        for (Worker worker : workers)
+            worker.close();
+    }
+}
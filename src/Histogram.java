@@ -1,16 +1,75 @@
 package im.boddy.iotester;
 
+import java.io.*;
+import java.util.*;
+
 public class Histogram
 {
+    /**
+     * LINEAR: nBins of equal width between xMin and xMax.
+     * LOG_LINEAR: each decade between xMin and xMax is split into equal-width bins with the given number of significant digits.
+     * AUTO: linear, but whenever a value falls outside the range, the range is doubled by merging pairs of bins.
+     */
+    public enum Binning {LINEAR, LOG_LINEAR, AUTO}
+
+    public static final int MAX_SIGNIFICANT_DIGITS = 5;
+
     /**
      * Thread safe
      */ 
-    private final float[] vals;
-    private final float xMin, xMax, binWidth;
+    private final double[] vals;
+    private float xMin, xMax, binWidth;
     private final int nBins, underflowBin, overflowBin;
     private final String title, xTitle, yTitle; 
+    private final Binning binning;
+    private final int minExponent, binsPerDecade, significantDigits;
+
+    //
+    // Running statistics, maintained by add() so that they can be queried every tick without rescanning the bins:
+    // weighted Welford moments of the in-range bin values, the raw extrema and a Fenwick tree of bin weights for quantiles
+    //
+    private final double[] cumulativeWeights;
+    private double inRangeWeight, mean, m2;
+    private float minVal = Float.NaN, maxVal = Float.NaN;
+    private long entries;
 
     public Histogram(int nBins, float xMin, float xMax, String title, String xTitle, String yTitle)
+    {
+        this(Binning.LINEAR, nBins, xMin, xMax, 0, title, xTitle, yTitle);
+    }
+
+    /**
+     * Log-linear bins covering whole decades from the power of ten at or below xMin to the one at or above xMax, 
+     * each decade holding 9 * 10^(significantDigits-1) bins so that any value is resolved to within 10^-(significantDigits-1).
+     */
+    public static Histogram logLinear(int significantDigits, float xMin, float xMax, String title, String xTitle, String yTitle)
+    {
+        if (significantDigits < 1 || significantDigits > MAX_SIGNIFICANT_DIGITS)
+            throw new IllegalArgumentException("require 1 <= significantDigits <= "+ MAX_SIGNIFICANT_DIGITS);
+        if (xMin <= 0)
+            throw new IllegalArgumentException("Log-linear binning requires xMin > 0");
+        if (xMin >= xMax)
+            throw new IllegalArgumentException("xMin must be less than xMax");
+
+        int minExponent = (int) Math.floor(Math.log10(xMin));
+        int maxExponent = Math.max(minExponent+1, (int) Math.ceil(Math.log10(xMax)));
+        int binsPerDecade = 9 * (int) Math.pow(10, significantDigits-1);
+
+        return new Histogram(Binning.LOG_LINEAR, (maxExponent - minExponent) * binsPerDecade, (float) Math.pow(10, minExponent), (float) Math.pow(10, maxExponent), significantDigits, title, xTitle, yTitle);
+    }
+
+    /**
+     * Linear bins over the initial range [xMin, xMax], which grows by doubling as out of range values are added.
+     */
+    public static Histogram autoRanging(int nBins, float xMin, float xMax, String title, String xTitle, String yTitle)
+    {
+        //
+        // Doubling merges pairs of bins
+        //
+        return new Histogram(Binning.AUTO, nBins + (nBins & 1), xMin, xMax, 0, title, xTitle, yTitle);
+    }
+
+    private Histogram(Binning binning, int nBins, float xMin, float xMax, int significantDigits, String title, String xTitle, String yTitle)
     {
         if (nBins <=0)
             throw new IllegalArgumentException("Number of bins must be greater than zero.");
@@ -19,28 +78,115 @@ public class Histogram
         if (binWidth <= 0)
             throw new IllegalArgumentException("xMin must be less than xMax");
 
+        this.binning = binning;
         this.nBins = nBins;
-        this.vals = new float[nBins+2];
+        this.vals = new double[nBins+2];
+        this.cumulativeWeights = new double[nBins+1];
         this.xMin = xMin; 
         this.xMax = xMax;
         this.underflowBin = vals.length-2;
         this.overflowBin = vals.length-1;
 
+        this.significantDigits = significantDigits;
+        if (binning == Binning.LOG_LINEAR)
+        {
+            this.minExponent = (int) Math.round(Math.log10(xMin));
+            this.binsPerDecade = 9 * (int) Math.pow(10, significantDigits-1);
+        }
+        else
+        {
+            this.minExponent = 0;
+            this.binsPerDecade = 0;
+        }
+
         this.title = title;
         this.xTitle = xTitle;
         this.yTitle = yTitle;
     }
     
-    public int getBin(float val)
+    public synchronized int getBin(float val)
     {
         if (val < xMin)
             return underflowBin;
         if (val > xMax)
             return overflowBin;
 
-        return (int) ((val - xMin) / binWidth);
+        if (binning != Binning.LOG_LINEAR)
+            return Math.min((int) ((val - xMin) / binWidth), nBins-1);
+
+        if (val == xMax)
+            return nBins-1;
+
+        int exponent = (int) Math.floor(Math.log10(val));
+        double base = Math.pow(10, exponent);
+        //
+        // Guard against rounding in log10 at decade boundaries
+        //
+        if (val < base)
+            base = Math.pow(10, --exponent);
+        else if (val >= base * 10)
+            base = Math.pow(10, ++exponent);
+
+        int iSubBin = (int) ((val - base) / decadeBinWidth(base));
+        iSubBin = Math.max(0, Math.min(iSubBin, binsPerDecade-1));
+        return Math.min((exponent - minExponent) * binsPerDecade + iSubBin, nBins-1);
     } 
 
+    private double decadeBinWidth(double decadeBase)
+    {
+        return 9 * decadeBase / binsPerDecade;
+    }
+
+    /**
+     * Doubles the range of an auto-ranging histogram, towards the lower or upper end, by merging pairs of bins.
+     */
+    private void extendRange(boolean downwards)
+    {
+        float range = xMax - xMin;
+        int offset = downwards ? nBins/2 : 0;
+        //
+        // Iterate away from the half being filled so that no pair is overwritten before it is merged
+        //
+        for (int j=0; j < nBins; j+=2)
+        {
+            int i = downwards ? nBins-2-j : j;
+            double merged = vals[i] + vals[i+1];
+            vals[i] = vals[i+1] = 0;
+            vals[offset + i/2] = merged;
+        }
+
+        if (downwards)
+            xMin -= range;
+        else
+            xMax += range;
+        binWidth = (xMax - xMin) / nBins;
+
+        //
+        // Bin centres have moved, so the running statistics are recomputed from the bins
+        //
+        recomputeStatistics();
+    }
+
+    private void recomputeStatistics()
+    {
+        inRangeWeight = mean = m2 = 0;
+        Arrays.fill(cumulativeWeights, 0);
+        for (int i=0; i < nBins; i++)
+            if (vals[i] > 0)
+                accumulate(i, vals[i]);
+    }
+
+    private void accumulate(int iBin, double weight)
+    {
+        double x = binXval(iBin);
+        inRangeWeight += weight;
+        double delta = x - mean;
+        mean += delta * weight / inRangeWeight;
+        m2 += weight * delta * (x - mean);
+
+        for (int i=iBin+1; i <= nBins; i += i & -i)
+            cumulativeWeights[i] += weight;
+    }
 
     public synchronized void add(float val)
     {
@@ -51,69 +197,137 @@ public class Histogram
     {
         if (weight <=0)
            throw new IllegalArgumentException("weight must be >=0 ."); 
-        vals[getBin(val)] += weight;
+
+        if (binning == Binning.AUTO && ! Float.isNaN(val) && ! Float.isInfinite(val))
+        {
+            while (val > xMax && ! Float.isInfinite(xMax + (xMax - xMin)))
+                extendRange(false);
+            while (val < xMin && ! Float.isInfinite(xMin - (xMax - xMin)))
+                extendRange(true);
+        }
+
+        int iBin = getBin(val);
+        vals[iBin] += weight;
+
+        entries++;
+        if (entries == 1 || val < minVal)
+            minVal = val;
+        if (entries == 1 || val > maxVal)
+            maxVal = val;
+
+        if (iBin >= nBins)
+            return;
+
+        accumulate(iBin, weight);
+    }
+
+    /**
+     * @return the index of the first bin whose cumulative weight is at least (or, if strict, greater than) the target
+     */
+    private int findCumulative(double target, boolean strict)
+    {
+        int pos = 0;
+        double remaining = target;
+        for (int step = Integer.highestOneBit(nBins); step > 0; step >>= 1)
+        {
+            int next = pos + step;
+            if (next > nBins)
+                continue;
+            double w = cumulativeWeights[next];
+            if (w < remaining || (strict && w <= remaining))
+            {
+                pos = next;
+                remaining -= w;
+            }
+        }
+        return Math.min(pos, nBins-1);
+    }
+
+    public synchronized float binXval(int iBin)
+    {
+        return (binLowEdge(iBin) + binHighEdge(iBin)) / 2;
     }
 
-    public float binXval(int iBin)
+    public synchronized float binLowEdge(int iBin)
     {
         if (iBin < 0 || iBin >= nBins)
             throw new IllegalArgumentException("require 0 <= bin < "+ nBins);
 
-        return xMin + binWidth/2 + iBin * binWidth;
+        if (binning != Binning.LOG_LINEAR)
+            return xMin + iBin * binWidth;
+
+        double base = Math.pow(10, minExponent + iBin / binsPerDecade);
+        return (float) (base + (iBin % binsPerDecade) * decadeBinWidth(base));
+    }
+
+    public synchronized float binHighEdge(int iBin)
+    {
+        if (iBin < 0 || iBin >= nBins)
+            throw new IllegalArgumentException("require 0 <= bin < "+ nBins);
+
+        if (binning != Binning.LOG_LINEAR)
+            return xMin + (iBin+1) * binWidth;
+
+        double base = Math.pow(10, minExponent + iBin / binsPerDecade);
+        return (float) (base + (iBin % binsPerDecade + 1) * decadeBinWidth(base));
     }
 
     public synchronized float binYval(int iBin)
     {
         if (iBin < 0)
-            return vals[underflowBin];
+            return (float) vals[underflowBin];
         if (iBin >= nBins)
-            return vals[overflowBin];
+            return (float) vals[overflowBin];
 
-        return vals[iBin];
+        return (float) vals[iBin];
     }
 
-    public float xMin(){return xMin;}
-    public float xMax(){return xMax;}
-    public float binWidth(){return binWidth;}
+    public synchronized float xMin(){return xMin;}
+    public synchronized float xMax(){return xMax;}
+    /**
+     * @return the width of every bin, or for log-linear binning the width of the first bin
+     */
+    public synchronized float binWidth(){return binWidth(0);}
+    public synchronized float binWidth(int iBin){return binning == Binning.LOG_LINEAR ? binHighEdge(iBin) - binLowEdge(iBin) : binWidth;}
+    public int nBins(){return nBins;}
+    public Binning binning(){return binning;}
+    public int significantDigits(){return significantDigits;}
     public String title(){return title;}
     public String xTitle(){return xTitle;}
     public String yTitle(){return yTitle;}
 
-    public synchronized float getUnderflow(){return vals[underflowBin];}
-    public synchronized float getOverflow(){return vals[overflowBin];}
+    public synchronized float getUnderflow(){return (float) vals[underflowBin];}
+    public synchronized float getOverflow(){return (float) vals[overflowBin];}
+
+    /**
+     * @return the number of add() calls, including under/overflows
+     */
+    public synchronized long getEntries(){return entries;}
+    /**
+     * @return the smallest value added, NaN if empty
+     */
+    public synchronized float getMin(){return minVal;}
+    /**
+     * @return the largest value added, NaN if empty
+     */
+    public synchronized float getMax(){return maxVal;}
+    public synchronized float getInRangeWeight(){return (float) inRangeWeight;}
 
 
     public synchronized float getAverage()
     {
-        float totalWeight = 0, totalVal = 0;
-        for (int i=0;i < nBins; i++)
-        {
-            totalWeight += binYval(i);
-            totalVal += binXval(i) * binYval(i);
-        }
-
-        if (totalWeight == 0)
+        if (inRangeWeight == 0)
             return 0;
 
-        return totalVal / totalWeight;
+        return (float) mean;
     }
 
     public synchronized float getVariance()
     {
-        float ave = getAverage();
-        float totalWeight = 0, variance = 0;
-
-        for (int i=0;i < nBins; i++)
-        {
-            totalWeight += binYval(i);
-            variance += binYval(i) * (binXval(i) - ave)*(binXval(i) - ave);
-        }
-
-        if (totalWeight == 0)
+        if (inRangeWeight == 0)
             return 0;
 
-        variance /= totalWeight;
-        return variance;
+        return (float) (m2 / inRangeWeight);
     }
     
     public synchronized float[] getOneSigmaInterval()
@@ -134,40 +348,172 @@ public class Histogram
         //first element is lower bound
         //second element is upper bound
         
-        float totalWeight = 0;
-        for (int i=0;i < nBins; i++)
-            totalWeight += binYval(i);
-
-        if (totalWeight < 1.e-9)
+        if (inRangeWeight < 1.e-9)
             return CLInterval;
 
-        float targetWeight = (1.f - coverage) /2.f;
+        double targetWeight = Math.max(inRangeWeight * (1. - coverage) /2., Double.MIN_VALUE);
+
+        CLInterval[0] = binXval(findCumulative(targetWeight, false));
+        CLInterval[1] = binXval(findCumulative(inRangeWeight - targetWeight, true));
+
+        return CLInterval;
+    }
+
+    /**
+     * @return the centre of the bin at which the in-range cumulative weight reaches the given fraction
+     */
+    public synchronized float getQuantile(float fraction)
+    {
+        if (fraction < 0 || 1 < fraction)
+            throw new IllegalArgumentException("require 0 <= fraction <= 1"); 
+        if (inRangeWeight < 1.e-9)
+            return 0;
+
+        return binXval(findCumulative(Math.max(inRangeWeight * fraction, Double.MIN_VALUE), false));
+    }
+
+
+    /**
+     * Adds the contents of another histogram with the same binning, eg. one collected on another node.
+     * Linear and log-linear histograms must also have the same range; an auto-ranging histogram is first
+     * extended to cover the other's range, after which bins that no longer line up are added at their centres.
+     */
+    public void merge(Histogram other)
+    {
+        if (other == this)
+            throw new IllegalArgumentException("Cannot merge a histogram into itself.");
 
-        float weight = 0;
-        for (int i=0;i < nBins; i++)
-            if ((weight += binYval(i)) >= targetWeight)
+        //
+        // Copied first so that the two locks are never held together
+        //
+        Histogram snapshot = other.copy();
+
+        synchronized (this)
+        {
+            if (binning != snapshot.binning || nBins != snapshot.nBins)
+                throw new IllegalArgumentException("Cannot merge "+ snapshot.binning +" histogram of "+ snapshot.nBins +" bins into "+ binning +" histogram of "+ nBins +" bins.");
+            boolean sameRange = xMin == snapshot.xMin && xMax == snapshot.xMax;
+            if (! sameRange && binning != Binning.AUTO)
+                throw new IllegalArgumentException("Cannot merge histograms with different ranges.");
+
+            if (snapshot.entries == 0)
+                return;
+
+            if (binning == Binning.AUTO)
             {
-                CLInterval[0] = binXval(i);
-                break;
+                while (snapshot.xMax > xMax && ! Float.isInfinite(xMax + (xMax - xMin)))
+                    extendRange(false);
+                while (snapshot.xMin < xMin && ! Float.isInfinite(xMin - (xMax - xMin)))
+                    extendRange(true);
+                sameRange = xMin == snapshot.xMin && xMax == snapshot.xMax;
             }
 
-        weight = 0; 
-        for (int i=nBins-1;i >=0 ; i--)
-            if ((weight += binYval(i)) >= targetWeight)
+            for (int i=0; i < nBins; i++)
+                if (snapshot.vals[i] > 0)
+                    vals[sameRange ? i : getBin(snapshot.binXval(i))] += snapshot.vals[i];
+            vals[underflowBin] += snapshot.vals[underflowBin];
+            vals[overflowBin] += snapshot.vals[overflowBin];
+
+            if (entries == 0 || snapshot.minVal < minVal)
+                minVal = snapshot.minVal;
+            if (entries == 0 || snapshot.maxVal > maxVal)
+                maxVal = snapshot.maxVal;
+            entries += snapshot.entries;
+
+            recomputeStatistics();
+        }
+    }
+
+    /**
+     * @return an independent histogram with the same binning and contents
+     */
+    public synchronized Histogram copy()
+    {
+        Histogram copy = new Histogram(binning, nBins, xMin, xMax, significantDigits, title, xTitle, yTitle);
+        System.arraycopy(vals, 0, copy.vals, 0, vals.length);
+        copy.entries = entries;
+        copy.minVal = minVal;
+        copy.maxVal = maxVal;
+        copy.recomputeStatistics();
+        return copy;
+    }
+
+    /**
+     * Writes the binning and the contents, from which readFrom() restores an identical histogram, in a compact
+     * sparse form: only non-empty bins (including under/overflow) are written, each as the varint gap from the
+     * previous one followed by its weight, a varint for whole weights or a tagged double otherwise.
+     */
+    public synchronized void writeTo(DataOutput out) throws IOException
+    {
+        out.writeByte(binning.ordinal());
+        VarInt.write(out, nBins);
+        out.writeFloat(xMin);
+        out.writeFloat(xMax);
+        out.writeByte(significantDigits);
+        for (String s : new String[]{title, xTitle, yTitle})
+            out.writeUTF(s != null ? s : "");
+        VarInt.write(out, entries);
+        out.writeFloat(minVal);
+        out.writeFloat(maxVal);
+
+        int nonEmpty = 0;
+        for (double val : vals)
+            if (val != 0)
+                nonEmpty++;
+        VarInt.write(out, nonEmpty);
+
+        int previous = -1;
+        for (int i=0; i < vals.length; i++)
+        {
+            double val = vals[i];
+            if (val == 0)
+                continue;
+            VarInt.write(out, i - previous - 1);
+            previous = i;
+
+            //
+            // The low bit tags whole weights, which are the common case since most values are added with weight 1
+            //
+            if (val > 0 && val == Math.rint(val) && val < (1L << 52))
+                VarInt.write(out, ((long) val) << 1);
+            else
             {
-                CLInterval[1] = binXval(i);
-                break;
+                VarInt.write(out, 1);
+                out.writeDouble(val);
             }
-
-        return CLInterval;
+        }
     }
 
+    public static Histogram readFrom(DataInput in) throws IOException
+    {
+        Binning binning = Binning.values()[in.readUnsignedByte()];
+        int nBins = (int) VarInt.read(in);
+        float xMin = in.readFloat(), xMax = in.readFloat();
+        int significantDigits = in.readUnsignedByte();
+        Histogram histogram = new Histogram(binning, nBins, xMin, xMax, significantDigits, in.readUTF(), in.readUTF(), in.readUTF());
+        histogram.entries = VarInt.read(in);
+        histogram.minVal = in.readFloat();
+        histogram.maxVal = in.readFloat();
+
+        int i = -1;
+        for (long nonEmpty = VarInt.read(in); nonEmpty > 0; nonEmpty--)
+        {
+            i += VarInt.read(in) + 1;
+            if (i >= histogram.vals.length)
+                throw new IOException("Bin "+ i +" out of range for "+ nBins +" bins.");
+            long weight = VarInt.read(in);
+            histogram.vals[i] = (weight & 1) == 0 ? weight >>> 1 : in.readDouble();
+        }
+        histogram.recomputeStatistics();
+        return histogram;
+    }
 
     public synchronized String toString()
     {
         StringBuilder sb = new StringBuilder();
 
         sb.append("title : "+ title+"\nxTitle : "+ xTitle +"\nyTitle : "+ yTitle+"\n");
+        sb.append("binning : "+ binning +"\nxMin : "+ xMin +"\nxMax : "+ xMax +"\n");
         sb.append("underflow : "+ getUnderflow() + "\noverflow :" + getOverflow() +"\n\n");
         sb.append("average : "+ getAverage() +"\n");
         sb.append("variance : "+ getVariance() +"\n");
@@ -186,6 +532,9 @@ public class Histogram
         sb.append("{\"title\" : \""+title+"\", ");
         sb.append("\"xTitle\" : \""+xTitle+"\", ");
         sb.append("\"yTitle\" : \""+yTitle+"\", ");
+        sb.append("\"binning\" : \""+binning+"\", ");
+        sb.append("\"xMin\" : "+ xMin +", ");
+        sb.append("\"xMax\" : "+ xMax +", ");
         sb.append("\"underflow\" : "+ getUnderflow() +", ");
         sb.append("\"overflow\" : "+ getOverflow() +", ");
         sb.append("\"average\" : "+getAverage()+", ");
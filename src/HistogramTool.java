@@ -0,0 +1,149 @@
+package im.boddy.iotester;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Reads and writes binary histogram files, and merges many of them, eg. one per node,
+ * into cluster-wide statistics from the command line:
+ *
+ * java -cp IOTester.jar im.boddy.iotester.HistogramTool [-out merged.bin] [-bins] node1.bin node2.bin ...
+ *
+ * A file is a magic number and version followed by tagged histograms in their compact
+ * writeTo() form. Histograms with the same kind and title are merged.
+ */
+public class HistogramTool
+{
+    public static final int MAGIC = 0x494f5448;
+    public static final int VERSION = 1;
+    private static final byte RATE = 'H', LATENCY = 'L';
+
+    /**
+     * Replaces the file atomically with the given histograms.
+     */
+    public static void write(File f, Collection<Histogram> histograms, Collection<LatencyHistogram> latencies) throws IOException
+    {
+        File tmp = new File(f.getPath() +".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            for (Histogram histogram : histograms)
+            {
+                out.writeByte(RATE);
+                histogram.writeTo(out);
+            }
+            for (LatencyHistogram latency : latencies)
+            {
+                out.writeByte(LATENCY);
+                latency.writeTo(out);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Merges the histograms of the file into the given maps, keyed by title.
+     */
+    public static void read(File f, Map<String, Histogram> histograms, Map<String, LatencyHistogram> latencies) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try
+        {
+            if (in.readInt() != MAGIC)
+                throw new IOException(f +" is not a binary histogram file.");
+            int version = in.readUnsignedByte();
+            if (version != VERSION)
+                throw new IOException(f +" has unsupported version "+ version);
+
+            int tag;
+            while ((tag = in.read()) != -1)
+            {
+                if (tag == RATE)
+                {
+                    Histogram histogram = Histogram.readFrom(in);
+                    Histogram merged = histograms.get(histogram.title());
+                    if (merged == null)
+                        histograms.put(histogram.title(), histogram);
+                    else
+                        merged.merge(histogram);
+                }
+                else if (tag == LATENCY)
+                {
+                    LatencyHistogram latency = LatencyHistogram.readFrom(in);
+                    LatencyHistogram merged = latencies.get(latency.title());
+                    if (merged == null)
+                        latencies.put(latency.title(), latency);
+                    else
+                        merged.merge(latency);
+                }
+                else
+                    throw new IOException("Unknown record type "+ tag +" in "+ f);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return one line of summary statistics of a rate histogram
+     */
+    public static String summary(Histogram histogram)
+    {
+        float[] twoSigma = histogram.getTwoSigmaInterval();
+        return String.format("%-40s %10d %12.2f %12.2f %12.2f %12.2f %12.2f %12.2f%n", histogram.title(), histogram.getEntries(), histogram.getAverage(),
+                Math.sqrt(histogram.getVariance()), histogram.getQuantile(0.5f), histogram.getQuantile(0.99f), twoSigma[0], twoSigma[1]);
+    }
+
+    public static String summaryHeader()
+    {
+        return String.format("%-40s %10s %12s %12s %12s %12s %12s %12s%n", "title", "entries", "mean", "std-dev", "median", "p99", "2-sigma low", "2-sigma high");
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        String out = null;
+        boolean bins = false;
+        List<File> files = new ArrayList<File>();
+        for (int i=0; i < args.length; i++)
+        {
+            if ("-out".equals(args[i]) && i < args.length-1)
+                out = args[++i];
+            else if ("-bins".equals(args[i]))
+                bins = true;
+            else
+                files.add(new File(args[i]));
+        }
+
+        if (files.isEmpty())
+        {
+            System.out.println("Usage: java -cp IOTester.jar im.boddy.iotester.HistogramTool [-out <merged binary file>] [-bins, also print every bin] <binary histogram files>");
+            System.exit(1);
+        }
+
+        Map<String, Histogram> histograms = new LinkedHashMap<String, Histogram>();
+        Map<String, LatencyHistogram> latencies = new LinkedHashMap<String, LatencyHistogram>();
+        for (File f : files)
+            read(f, histograms, latencies);
+
+        System.out.println("Merged "+ files.size() +" files.\n");
+        System.out.print(summaryHeader());
+        for (Histogram histogram : histograms.values())
+            System.out.print(summary(histogram));
+        System.out.println();
+        for (LatencyHistogram latency : latencies.values())
+            if (latency.getCount() > 0)
+                System.out.println(latency);
+
+        if (bins)
+            for (Histogram histogram : histograms.values())
+                System.out.print(histogram);
+
+        if (out != null)
+            write(new File(out), histograms.values(), latencies.values());
+    }
+}
@@ -5,28 +5,64 @@ import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 import java.net.*;
 import java.io.*;
+import java.nio.file.*;
 
-public abstract class IOTester implements Runnable
+public abstract class IOTester implements Runnable, IOTesterMXBean
 {
     public static final int DEFAULT_BUFFER_LENGTH = 64*1024;
     
+    public static final String READ_LATENCY = "Read latency", WRITE_LATENCY = "Write latency", RTT_LATENCY = "Round-trip time";
+
     private static Histogram readHistogram, writeHistogram;
-    private static String histFileName;
+    private static String histFileName, binaryHistFileName;
+    private static Histogram.Binning binning = Histogram.Binning.LINEAR;
+    private static float xMin = 0, xMax = 10000;
+    private static int nBins = 1000, significantDigits = 3;
     private static int sleepTick = 100;
+    private static volatile TimeSeriesWriter timeSeries;
     
     protected volatile boolean isClosed;
+    protected volatile Pacer pacer;
     protected final CountDownLatch latch;
 
-    protected final AtomicLong readCount, writeCount, totalReadCount, totalWriteCount;
+    //
+    // Updated by every I/O thread, so striped to avoid cache-line contention, and drained by the tick thread
+    //
+    protected final LongAdder readCount, writeCount, transactionCount;
+    protected final AtomicLong totalReadCount, totalWriteCount, totalTransactionCount;
     protected final int duration, bufferSize;
     protected final Random random;
+    protected final Queue<StreamCounter> streams = new ConcurrentLinkedQueue<StreamCounter>();
+    //
+    // Per tester, so that eg. disk and network operations of the same process are not mixed, and merged for the report
+    //
+    protected final LatencyHistogram readLatency = new LatencyHistogram(READ_LATENCY), writeLatency = new LatencyHistogram(WRITE_LATENCY);
+    protected final LatencyHistogram rttLatency = new LatencyHistogram(RTT_LATENCY);
+    private final ConcurrentMap<String, PeerStats> peerStats = new ConcurrentSkipListMap<String, PeerStats>();
+    private final Queue<PhaseStats> phaseStats = new ConcurrentLinkedQueue<PhaseStats>();
+    private final ConcurrentMap<String, OpStats> opStats = new ConcurrentSkipListMap<String, OpStats>();
+
+    private volatile TrafficPattern pattern;
+    private volatile int peerIndex, reshuffleMillis;
+    //
+    // Only touched by the tick thread
+    //
+    private int phase;
+    private long phaseStartTime, phaseStartRead, phaseStartWrite;
+    private LatencyHistogram[] lastLatencies;
+
+    private static final AtomicInteger testerCount = new AtomicInteger();
+    private final String name = getClass().getSimpleName() +"-"+ testerCount.incrementAndGet();
+    private volatile float lastReadRate, lastWriteRate, lastTransactionRate;
     
     public IOTester(int duration, int bufferSize)
     {
-        this.readCount = new AtomicLong();
-        this.writeCount = new AtomicLong();
+        this.readCount = new LongAdder();
+        this.writeCount = new LongAdder();
         this.totalReadCount = new AtomicLong();
         this.totalWriteCount = new AtomicLong();
+        this.transactionCount = new LongAdder();
+        this.totalTransactionCount = new AtomicLong();
 
         this.random = new Random();
 
@@ -38,6 +74,247 @@ public abstract class IOTester implements Runnable
 
     abstract void init();
 
+    /**
+     * Switches from closed-loop to open-loop load: operations are started on the pacer's fixed timeline.
+     */
+    public void setPacer(Pacer pacer)
+    {
+        this.pacer = pacer;
+    }
+
+    /**
+     * Records throughput per phase of the traffic pattern, this node being the peer at peerIndex.
+     *
+     * @param reshuffleMillis if greater than zero, a new phase starts this often and the destinations are recomputed
+     * @throws IllegalArgumentException if reshuffleMillis is greater than zero and this tester cannot reshuffle
+     */
+    public void setPattern(TrafficPattern pattern, int peerIndex, int reshuffleMillis)
+    {
+        if (reshuffleMillis > 0 && ! supportsReshuffle())
+            throw new IllegalArgumentException(getClass().getSimpleName() +" cannot change destinations during a run.");
+        this.pattern = pattern;
+        this.peerIndex = peerIndex;
+        this.reshuffleMillis = reshuffleMillis;
+    }
+
+    /**
+     * @return true if reshuffle() changes this tester's destinations, otherwise setPattern() refuses to reshuffle
+     */
+    protected boolean supportsReshuffle()
+    {
+        return false;
+    }
+
+    /**
+     * Called by the tick thread at the start of each new phase of the traffic pattern, only if supportsReshuffle().
+     */
+    protected void reshuffle(InetSocketAddress[] destinations){}
+
+    private void endPhase(long time)
+    {
+        long read = totalReadCount.get(), write = totalWriteCount.get();
+        phaseStats.add(new PhaseStats(phase, pattern.describe(peerIndex, phase), time - phaseStartTime, read - phaseStartRead, write - phaseStartWrite));
+        phaseStartTime = time;
+        phaseStartRead = read;
+        phaseStartWrite = write;
+    }
+
+    /**
+     * @return the median and 99th percentile of each latency histogram over the last tick, in microseconds
+     */
+    private double[] tickLatencies()
+    {
+        LatencyHistogram[] latencies = {readLatency.copy(), writeLatency.copy(), rttLatency.copy()};
+        double[] quantiles = new double[2 * latencies.length];
+        if (lastLatencies != null)
+        {
+            for (int i=0; i < latencies.length; i++)
+            {
+                LatencyHistogram interval = latencies[i].since(lastLatencies[i]);
+                quantiles[2*i] = LatencyHistogram.toMicros(interval.getValueAtPercentile(50));
+                quantiles[2*i+1] = LatencyHistogram.toMicros(interval.getValueAtPercentile(99));
+            }
+        }
+        lastLatencies = latencies;
+        return quantiles;
+    }
+
+    /**
+     * Waits for the next paced slot, if a target rate is set.
+     *
+     * @return the time, in System.nanoTime() units, from which the operation's latency is measured
+     */
+    protected long startOperation()
+    {
+        Pacer p = pacer;
+        return p != null ? p.acquire() : System.nanoTime();
+    }
+
+    /**
+     * Registers the counters of a new connection, keyed by the remote host, so that its throughput is broken down per peer.
+     */
+    protected StreamCounter newStream(Socket s)
+    {
+        InetAddress address = s.getInetAddress();
+        String peer = address != null ? address.getHostAddress() : "unconnected";
+        StreamCounter stream = new StreamCounter(peer, s.getLocalPort() +"->"+ peer +":"+ s.getPort());
+        peerStats(stream.peer()).connectionOpened();
+        streams.add(stream);
+        return stream;
+    }
+
+    private PeerStats peerStats(String peer)
+    {
+        PeerStats stats = peerStats.get(peer);
+        if (stats != null)
+            return stats;
+        stats = new PeerStats(peer);
+        PeerStats previous = peerStats.putIfAbsent(peer, stats);
+        return previous != null ? previous : stats;
+    }
+
+    /**
+     * Aggregates the per-connection deltas of the last tick into per-peer rate samples.
+     * Streams are dropped once closed, and on the final call, after recording their lifetime rate.
+     */
+    private void sampleStreams(float deltaTime, boolean last)
+    {
+        if (streams.isEmpty())
+            return;
+
+        Map<String, long[]> deltas = new HashMap<String, long[]>();
+        for (Iterator<StreamCounter> it = streams.iterator(); it.hasNext(); )
+        {
+            StreamCounter stream = it.next();
+            long[] delta = deltas.get(stream.peer());
+            if (delta == null)
+                deltas.put(stream.peer(), delta = new long[2]);
+            delta[0] += stream.readDelta();
+            delta[1] += stream.writeDelta();
+
+            if (stream.isClosed() || last)
+            {
+                peerStats(stream.peer()).connectionFinished(stream.meanRate());
+                it.remove();
+            }
+        }
+
+        for (Map.Entry<String, long[]> entry : deltas.entrySet())
+            peerStats(entry.getKey()).sample(entry.getValue()[0], entry.getValue()[1], deltaTime);
+    }
+
+    /**
+     * @return a table of throughput per peer host, empty if there were no connections
+     */
+    public static String peerTable(Collection<PeerStats> peers)
+    {
+        if (peers.isEmpty())
+            return "";
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(PeerStats.tableHeader());
+        for (PeerStats stats : peers)
+            sb.append(stats.tableRow());
+        return sb.toString();
+    }
+
+    public String peerTable(){return peerTable(peerStats.values());}
+
+    public Collection<PeerStats> peerStats(){return peerStats.values();}
+
+    /**
+     * @return the connections of every tester to each peer host, merged, in peer order
+     */
+    public static Collection<PeerStats> peerStats(Collection<? extends IOTester> testers)
+    {
+        SortedMap<String, PeerStats> merged = new TreeMap<String, PeerStats>();
+        for (IOTester tester : testers)
+            for (PeerStats stats : tester.peerStats.values())
+            {
+                PeerStats total = merged.get(stats.peer());
+                if (total == null)
+                    merged.put(stats.peer(), stats.copy());
+                else
+                    total.merge(stats);
+            }
+        return merged.values();
+    }
+
+    /**
+     * @return the statistics of one type of operation, sampled every tick by this tester
+     */
+    protected OpStats opStats(String op)
+    {
+        OpStats stats = opStats.get(op);
+        if (stats != null)
+            return stats;
+        stats = new OpStats(op);
+        OpStats previous = opStats.putIfAbsent(op, stats);
+        return previous != null ? previous : stats;
+    }
+
+    /**
+     * @return a table of throughput and latency per type of operation, empty if no tester distinguishes them
+     */
+    public static String opTable(Collection<OpStats> ops)
+    {
+        if (ops.isEmpty())
+            return "";
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(OpStats.tableHeader());
+        for (OpStats stats : ops)
+            sb.append(stats.tableRow());
+        return sb.toString();
+    }
+
+    public String opTable(){return opTable(opStats.values());}
+
+    public Collection<OpStats> opStats(){return opStats.values();}
+
+    /**
+     * @return the operations of every tester, merged by name, in name order
+     */
+    public static Collection<OpStats> opStats(Collection<? extends IOTester> testers)
+    {
+        SortedMap<String, OpStats> merged = new TreeMap<String, OpStats>();
+        for (IOTester tester : testers)
+            for (OpStats stats : tester.opStats.values())
+            {
+                OpStats total = merged.get(stats.op());
+                if (total == null)
+                    merged.put(stats.op(), stats.copy());
+                else
+                    total.merge(stats);
+            }
+        return merged.values();
+    }
+
+    /**
+     * @return the throughput of each phase of the traffic pattern, empty if none was set
+     */
+    public Collection<PhaseStats> phaseStats(){return phaseStats;}
+
+    public static List<PhaseStats> phaseStats(Collection<? extends IOTester> testers)
+    {
+        List<PhaseStats> phases = new ArrayList<PhaseStats>();
+        for (IOTester tester : testers)
+            phases.addAll(tester.phaseStats);
+        return phases;
+    }
+
+    public static String phaseTable(Collection<PhaseStats> phases)
+    {
+        if (phases.isEmpty())
+            return "";
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(PhaseStats.tableHeader());
+        for (PhaseStats stats : phases)
+            sb.append(stats.tableRow());
+        return sb.toString();
+    }
+
     protected synchronized void close()
     {
         isClosed = true;
@@ -45,10 +322,12 @@ public abstract class IOTester implements Runnable
 
     public void run()
     {
+        MetricsServer.register(this);
         init();
         
         long previousTime  = System.currentTimeMillis(); 
         long startTime = previousTime;
+        phaseStartTime = startTime;
         latch.countDown();
 
         while(! isClosed)
@@ -61,8 +340,8 @@ public abstract class IOTester implements Runnable
             long time = System.currentTimeMillis(); 
             float deltaTime = (float) (time -  previousTime);  
 
-            long deltaRead = readCount.getAndSet(0);
-            long deltaWrite = writeCount.getAndSet(0); 
+            long deltaRead = readCount.sumThenReset();
+            long deltaWrite = writeCount.sumThenReset(); 
 
             totalReadCount.addAndGet(deltaRead);
             totalWriteCount.addAndGet(deltaWrite);
@@ -70,27 +349,92 @@ public abstract class IOTester implements Runnable
             float readRate = toMBperSec(deltaRead, deltaTime);
             float writeRate = toMBperSec(deltaWrite, deltaTime);
 
+            long deltaTransactions = transactionCount.sumThenReset();
+            totalTransactionCount.addAndGet(deltaTransactions);
 
-            System.out.println ("read rate "+ readRate +" MB/sec, write rate "+ writeRate + " MB/sec");
+            if (deltaTransactions > 0)
+                System.out.println ("read rate "+ readRate +" MB/sec, write rate "+ writeRate + " MB/sec, "+ (deltaTransactions * 1000 / deltaTime) +" transactions/sec");
+            else
+                System.out.println ("read rate "+ readRate +" MB/sec, write rate "+ writeRate + " MB/sec");
             previousTime = time;
 
+            lastReadRate = readRate;
+            lastWriteRate = writeRate;
+            lastTransactionRate = deltaTransactions * 1000 / deltaTime;
+
+            TimeSeriesWriter series = timeSeries;
+            if (series != null)
+                series.append(new TimeSeriesWriter.Sample(time, getClass().getSimpleName(), readRate, writeRate, lastTransactionRate, tickLatencies()));
+
             if (readHistogram != null)
                 readHistogram.add(readRate);
             if (writeHistogram != null)
                 writeHistogram.add(writeRate); 
 
-            if (duration > 0 && time-startTime > duration)
+            boolean last = duration > 0 && time-startTime > duration;
+            sampleStreams(deltaTime, last);
+            for (OpStats stats : opStats.values())
+                stats.sample(deltaTime);
+
+            if (last)
                 break;
+
+            if (pattern != null && reshuffleMillis > 0 && time - phaseStartTime >= reshuffleMillis)
+            {
+                endPhase(time);
+                reshuffle(pattern.destinations(peerIndex, ++phase));
+            }
         } 
 
+        if (pattern != null)
+            endPhase(previousTime);
+
         close();
+        MetricsServer.unregister(this);
+
+        String table = peerTable();
+        if (table.length() > 0)
+            System.out.print("\n"+ table);
+        if (! opStats.isEmpty())
+            System.out.print("\n"+ opTable());
+        if (pattern != null)
+            System.out.print("\n"+ phaseTable(phaseStats));
     } 
 
+    /**
+     * @return an empty histogram of sampled rates, binned as configured on the command line
+     */
+    public static Histogram newRateHistogram(String title)
+    {
+        switch (binning)
+        {
+            case LOG_LINEAR:
+                return Histogram.logLinear(significantDigits, xMin, xMax, title, "Sampled I/O rate", "Frequency");
+            case AUTO:
+                return Histogram.autoRanging(nBins, xMin, xMax, title, "Sampled I/O rate", "Frequency");
+            default:
+                return new Histogram(nBins, xMin, xMax, title, "Sampled I/O rate", "Frequency");
+        }
+    }
+
     public static float toMBperSec(long byteCount, float timeMillis)
     {
         return ((float) (byteCount / 1024)) / timeMillis;
     }
 
+    /**
+     * @return a pacer for -targetRate (MB/sec) or -targetOps (operations/sec), or null to run closed-loop
+     */
+    public static Pacer pacerFromArgs(Map<String, String> map, int bytesPerOp)
+    {
+        String s;
+        if ((s = map.get("targetRate")) != null)
+            return Pacer.forByteRate(Double.parseDouble(s), bytesPerOp);
+        if ((s = map.get("targetOps")) != null)
+            return new Pacer(Double.parseDouble(s));
+        return null;
+    }
+
     public static InetSocketAddress socketAddressFromString(String s)
     {
         if (s == null)
@@ -104,6 +448,24 @@ public abstract class IOTester implements Runnable
         return new InetSocketAddress (address, port);
     }
 
+    /**
+     * @return the addresses of a comma separated list, or null if there is none
+     */
+    public static InetSocketAddress[] socketAddressesFromString(String s)
+    {
+        if (s == null)
+            return null;
+
+        String[] split = s.split(",");
+        if (split.length == 0)
+            return null;
+
+        InetSocketAddress[] addresses = new InetSocketAddress[split.length];
+        for (int i=0;i< split.length; i++)
+            addresses[i] = socketAddressFromString(split[i]);
+        return addresses;
+    }
+
     public static Map<String, String> argMap(String[] args)
     {
         Map<String,String> map = new HashMap<String,String>();
@@ -121,29 +483,166 @@ public abstract class IOTester implements Runnable
         sb.append("Two modes : profile TCP performance and profile the file-system performance.\n\nTo use the network:\n");
         sb.append("java -jar IOTester.jar -serverAddress <ServerAddress (default null)> -clientAddresses <Address1,Address2 (default null)> -threadCount <number of client threads to each server address (default 1)> -duration <length of test in seconds (default infinite)> -windowSize <TCP window size (default 64K)> -filePath <path to file for disk I/O (default null)>\n");
         sb.append("eg. java NetworkIOTester -serverAddress 192.168.2.43:1337 -clientAddresses 192.168.2.43:1337,192.168.2.2:1337 -threadCount 5 -duration 120\n");
+        sb.append("Optional network parameters: -engine <blocking/nio, nio drives all connections from a few selector threads (default blocking)> -eventLoops <number of nio selector threads (default min(4, #cpus))> -zeroCopy <true/false if true, use the nio engine with pooled direct buffers and transferTo from a pre-filled file (default false)> -duplex <true/false if true, both ends of every connection send and receive at once, the server and clients must agree (default false)>\n");
+        sb.append("Request/response network parameters: -echo <true/false if true, servers answer each request and clients measure round-trip times, the server and clients must agree, blocking engine only (default false)> -messageSize <request size in bytes (default windowSize)> -responseSize <response size in bytes (default messageSize)> -pipeline <requests outstanding per connection (default 1)>\n");
+        sb.append("\nHistogram parameters for either mode: -binning <linear/log/auto, log uses log-linear bins over whole decades, auto doubles a linear range as needed (default linear)> -xMin <lowest binned rate (default 0, or 0.001 for log)> -xMax <highest binned rate, or initial range for auto (default 10000, 1e6 for log, xMin+1 for auto)> -nBins <number of linear bins (default 1000)> -significantDigits <resolution of log bins (default 3)> -tick <sampling period in ms (default 100)> -histFile <histogram file name (default hist.txt)> -binaryHistFile <if set, also write the histograms in a compact binary form to this file, which HistogramTool merges across nodes (default none)>\n");
+        sb.append("\nOutput parameters for either mode: -timeSeries <file to which a record of rates and tick latency quantiles is appended every tick (default none)> -timeSeriesFormat <csv/jsonl (default jsonl for .jsonl files, otherwise csv)> -checkpoint <if set, rewrite the histogram file every this many seconds (default only at exit)>\n");
+        sb.append("Monitoring: every running tester is a JMX MBean im.boddy.iotester:type=IOTester, -metricsPort <if set, serve the same metrics in Prometheus text format at http://host:port/metrics (default none)>\n");
+        sb.append("\nLoad parameters for either mode: -targetRate <if set, disk operations and client writes are issued open-loop on a fixed timeline at this many MB/sec and latency is measured from each intended start (default as fast as possible)> -targetOps <as targetRate, but in operations/sec>\n");
+        sb.append("\nTraffic patterns: -pattern <all-to-all/ring/incast/outcast/permutation, replaces -serverAddress and -clientAddresses> -peers <Address0,Address1,... the server address of every node, in the same order on every node> -peerIndex <this node's position in -peers> -target <receiving node of incast, sending node of outcast (default 0)> -reshuffle <for permutation, pick a new permutation every this many seconds (default never)> -seed <permutation seed, the same on every node (default 0)>, throughput is reported per phase\n");
+        sb.append("\nCluster mode: -agent <port, run as an agent that waits for plans from a coordinator on this port> -agents <Agent1:port,Agent2:port, run as the coordinator: every other option is sent to each agent as its plan, with {index} replaced by the agent's position in this list and {host} by its host, the agents start together and their results are merged into the histogram file; -duration is required>\n");
+        sb.append("eg. java -jar IOTester.jar -agents node1:7000,node2:7000 -serverAddress {host}:1337 -clientAddresses node1:1337,node2:1337 -duration 60\n");
         sb.append("\nTo use the file-system:\n");
         sb.append("java -jar IOTester.jar -filePath /path/to/file -maxFileSize <Maximum size the file can grow to (default 1MB)> -reading <true/false if true, will readfrom file, if false will write to file (default false)> -randomAccess <true/false (defalut false)> -windowSize <Individual read/write size (default 64K)>\n");
+        sb.append("Optional file-system parameters: -diskThreads <number of independent I/O threads, ie. the queue depth (default 1), -queueDepth is an alias> -sharedRegion <true/false if true, every thread addresses the whole file, otherwise each thread owns a disjoint region of maxFileSize/diskThreads (default false)> -asyncDepth <if greater than zero, each disk thread submits through an AsynchronousFileChannel keeping this many operations in flight (default 0)> -mmap <true/false if true, transfer through memory-mapped chunks of the file (default false)> -forceEvery <if greater than zero, each thread forces its writes to the device every this many writes (default 0)> -forceInterval <if greater than zero, each thread also forces its writes every this many ms (default 0)> -forceMetadata <true/false if true fsync, otherwise fdatasync, forcing only data (default true)> -groupCommit <true/false if true, concurrent writers share forces, each waiting for a force started after its write (default false)>, force latencies are reported separately from write latencies -direct <true/false if true, open the file with O_DIRECT, bypassing the page cache, windowSize must be a multiple of the file-system block size (default false)>\n");
+        sb.append("Mixed disk workloads, replacing -reading: -readPercent <percentage of operations that are reads (default 100 if reading, otherwise 0)> -blockSizes <Size1:weight1,Size2:weight2 operation sizes with an optional k or m suffix and their relative frequencies, eg. 4k:70,16k:20,1m:10 (default windowSize)> -readAccess <random/sequential (default as randomAccess)> -writeAccess <random/sequential (default as randomAccess)> -skew <uniform/zipf:theta/hotspot:fraction:probability, the distribution of random positions, hotspot:0.1:0.9 sends 90% of random operations to the first 10% of the file (default uniform)>, the rate and latency of each type of operation are reported separately\n");
+        sb.append("Append-only log: -appendLog <true/false if true, every disk thread appends windowSize records to a log of segment files filePath.00000000, filePath.00000001, ... of maxFileSize bytes, reporting records/sec (default false)> -segments <number of most recent segments kept (default 4)> -preallocate <true/false if true, extend each segment to its full size when it is created (default false)>\n");
+        sb.append("File-tree parameters: -fileTree <root directory of a many-small-files metadata test, run by diskThreads threads (default null)> -fileSize <size of each created file, with an optional k or m suffix (default 4k)> -fanOut <subdirectories of each directory (default 16)> -depth <levels of subdirectories (default 2)> -maxFiles <once this many files exist, creates become deletes (default 100000)> -fileOps <create:w1,read:w2,write:w3,stat:w4,rename:w5,delete:w6 the relative weight of each operation, write overwrites an existing file (default "+ FileTreeIOTester.DEFAULT_MIX +")>, operations/sec and latency are reported per operation\n");
         sb.append("eg. java -jar IOTester.jar -filePath /path/to/file -reading false -maxFileSize 1000000000");
         return sb.toString();
     }
+    public LatencyHistogram readLatency(){return readLatency;}
+    public LatencyHistogram writeLatency(){return writeLatency;}
+    public LatencyHistogram rttLatency(){return rttLatency;}
+
+    /**
+     * @return the read latencies of the testers, merged
+     */
+    public static LatencyHistogram readLatency(Collection<? extends IOTester> testers)
+    {
+        LatencyHistogram merged = new LatencyHistogram(READ_LATENCY);
+        for (IOTester tester : testers)
+            merged.merge(tester.readLatency);
+        return merged;
+    }
+
+    public static LatencyHistogram writeLatency(Collection<? extends IOTester> testers)
+    {
+        LatencyHistogram merged = new LatencyHistogram(WRITE_LATENCY);
+        for (IOTester tester : testers)
+            merged.merge(tester.writeLatency);
+        return merged;
+    }
+
+    public static LatencyHistogram rttLatency(Collection<? extends IOTester> testers)
+    {
+        LatencyHistogram merged = new LatencyHistogram(RTT_LATENCY);
+        for (IOTester tester : testers)
+            merged.merge(tester.rttLatency);
+        return merged;
+    }
     public long totalReadCount(){return totalReadCount.get();}
     public long totalWriteCount(){return totalWriteCount.get();}
+    public long totalTransactionCount(){return totalTransactionCount.get();}
     public synchronized boolean isClosed(){return isClosed;}
 
-    public static void main(String[] args) throws IOException
+    public String name(){return name;}
+
+    //
+    // IOTesterMXBean
+    //
+    public float getReadRate(){return lastReadRate;}
+    public float getWriteRate(){return lastWriteRate;}
+    public float getTransactionRate(){return lastTransactionRate;}
+    public long getTotalRead(){return totalReadCount.get();}
+    public long getTotalWrite(){return totalWriteCount.get();}
+    public long getTotalTransactions(){return totalTransactionCount.get();}
+    public int getOpenConnections(){return streams.size();}
+    public double getReadLatencyP50(){return LatencyHistogram.toMicros(readLatency.getValueAtPercentile(50));}
+    public double getReadLatencyP99(){return LatencyHistogram.toMicros(readLatency.getValueAtPercentile(99));}
+    public double getWriteLatencyP50(){return LatencyHistogram.toMicros(writeLatency.getValueAtPercentile(50));}
+    public double getWriteLatencyP99(){return LatencyHistogram.toMicros(writeLatency.getValueAtPercentile(99));}
+    public double getRoundTripTimeP50(){return LatencyHistogram.toMicros(rttLatency.getValueAtPercentile(50));}
+    public double getRoundTripTimeP99(){return LatencyHistogram.toMicros(rttLatency.getValueAtPercentile(99));}
+
+    public Map<String, Long> getPeerBytesRead()
     {
-        Map<String,String> map = argMap(args);
-        String s = null;
+        Map<String, Long> bytes = new TreeMap<String, Long>();
+        for (PeerStats stats : peerStats.values())
+            bytes.put(stats.peer(), stats.totalRead());
+        return bytes;
+    }
+
+    public Map<String, Long> getPeerBytesWritten()
+    {
+        Map<String, Long> bytes = new TreeMap<String, Long>();
+        for (PeerStats stats : peerStats.values())
+            bytes.put(stats.peer(), stats.totalWrite());
+        return bytes;
+    }
 
-        float xMin = (s= map.get("xMin")) != null ? Float.parseFloat(s) : 0; 
-        float xMax = (s= map.get("xMax")) != null ? Float.parseFloat(s) : 10000; // 5 seconds
-        int nBins = (s = map.get("nBins")) != null ? Integer.parseInt(s) : 1000;
+    public Map<String, Long> getConnectionBytesRead()
+    {
+        Map<String, Long> bytes = new TreeMap<String, Long>();
+        for (StreamCounter stream : streams)
+            bytes.put(stream.connection(), stream.readCount());
+        return bytes;
+    }
 
-        IOTester.readHistogram = new Histogram(nBins, xMin, xMax,"Read","Sampled I/O rate","Frequency");
-        IOTester.writeHistogram = new Histogram(nBins, xMin, xMax,"Write","Sampled I/O rate","Frequency");
+    public Map<String, Long> getConnectionBytesWritten()
+    {
+        Map<String, Long> bytes = new TreeMap<String, Long>();
+        for (StreamCounter stream : streams)
+            bytes.put(stream.connection(), stream.writeCount());
+        return bytes;
+    }
+
+    /**
+     * Applies the histogram and sampling options, starting from empty rate histograms.
+     */
+    public static void configure(Map<String, String> map) throws IOException
+    {
+        String s = null;
+
+        String binningName = (s = map.get("binning")) != null ? s : "linear";
+        if ("log".equals(binningName))
+            IOTester.binning = Histogram.Binning.LOG_LINEAR;
+        else if ("auto".equals(binningName))
+            IOTester.binning = Histogram.Binning.AUTO;
+        else if ("linear".equals(binningName))
+            IOTester.binning = Histogram.Binning.LINEAR;
+        else
+            throw new IllegalArgumentException("Unknown binning "+ binningName +", expected linear, log or auto.");
+
+        boolean isLog = IOTester.binning == Histogram.Binning.LOG_LINEAR, isAuto = IOTester.binning == Histogram.Binning.AUTO;
+        IOTester.xMin = (s= map.get("xMin")) != null ? Float.parseFloat(s) : (isLog ? 0.001f : 0); 
+        IOTester.xMax = (s= map.get("xMax")) != null ? Float.parseFloat(s) : (isLog ? 1e6f : isAuto ? IOTester.xMin + 1 : 10000); 
+        IOTester.nBins = (s = map.get("nBins")) != null ? Integer.parseInt(s) : 1000;
+        IOTester.significantDigits = (s = map.get("significantDigits")) != null ? Integer.parseInt(s) : 3;
+
+        IOTester.readHistogram = newRateHistogram("Read");
+        IOTester.writeHistogram = newRateHistogram("Write");
 
         IOTester.sleepTick = (s = map.get("tick")) != null ? Integer.parseInt(s) : 100; // 1 second 
         IOTester.histFileName = (s = map.get("histFile")) != null ? s : "hist.txt"; // 1 second 
+        IOTester.binaryHistFileName = map.get("binaryHistFile");
+
+        closeTimeSeries();
+        if ((s = map.get("timeSeries")) != null)
+            timeSeries = new TimeSeriesWriter(new File(s), TimeSeriesWriter.formatFromString(map.get("timeSeriesFormat"), s));
+    }
+
+    /**
+     * Writes out any queued time-series records and closes the file.
+     */
+    public static void closeTimeSeries()
+    {
+        TimeSeriesWriter series = timeSeries;
+        timeSeries = null;
+        if (series == null)
+            return;
+        series.close();
+        if (series.droppedCount() > 0)
+            System.out.println("Dropped "+ series.droppedCount() +" time-series records while the writer was behind.");
+    }
+
+    /**
+     * @return the disk and/or network testers described by the options, not yet started, empty if there are neither
+     */
+    public static List<IOTester> testersFromArgs(Map<String, String> map) throws IOException
+    {
+        String s = null;
+        List<IOTester> testers = new ArrayList<IOTester>();
 
         int threadCount =(s = map.get("threadCount")) != null ? Integer.parseInt(s) : 1;
         int duration = (s = map.get("duration")) != null ? Integer.parseInt(s) * 1000 : -1;
@@ -151,79 +650,312 @@ public abstract class IOTester implements Runnable
 
         InetSocketAddress serverAddress = socketAddressFromString(map.get("serverAddress"));
 
-        InetSocketAddress[] clientAddresses = null;
-        String clients = map.get("clientAddresses");
-        if (clients != null)
+        InetSocketAddress[] clientAddresses = socketAddressesFromString(map.get("clientAddresses"));
+
+        TrafficPattern pattern = null;
+        int peerIndex = 0, reshuffleMillis = 0;
+        if ((s = map.get("pattern")) != null)
         {
-            String[] split = clients.split(",");
-            if (split.length > 0)
+            if (serverAddress != null || clientAddresses != null)
+                throw new IllegalArgumentException("-pattern replaces -serverAddress and -clientAddresses.");
+            InetSocketAddress[] peers = socketAddressesFromString(map.get("peers"));
+            if (peers == null)
+                throw new IllegalArgumentException("Traffic patterns require -peers.");
+            if ((s = map.get("peerIndex")) == null)
+                throw new IllegalArgumentException("Traffic patterns require the -peerIndex of this node.");
+            peerIndex = Integer.parseInt(s);
+            int target = (s = map.get("target")) != null ? Integer.parseInt(s) : 0;
+            long seed = (s = map.get("seed")) != null ? Long.parseLong(s) : 0;
+            pattern = new TrafficPattern(TrafficPattern.kindFromString(map.get("pattern")), peers, target, seed);
+
+            reshuffleMillis = (s = map.get("reshuffle")) != null ? Integer.parseInt(s) * 1000 : 0;
+            if (reshuffleMillis > 0 && pattern.kind() != TrafficPattern.Kind.PERMUTATION)
+                throw new IllegalArgumentException("Only the permutation pattern can be reshuffled.");
+
+            serverAddress = pattern.peer(peerIndex);
+            clientAddresses = pattern.destinations(peerIndex, 0);
+            if (clientAddresses.length == 0)
+                clientAddresses = null;
+            System.out.println("Running "+ pattern.describe(peerIndex, 0) +" as peer "+ peerIndex +" of "+ pattern.peerCount() + (reshuffleMillis > 0 ? ", reshuffled every "+ (reshuffleMillis / 1000) +" seconds." : "."));
+        }
+
+        String filePath =  map.get("filePath");
+        if (filePath != null)
+        {
+            
+            long maxSize = (s = map.get("maxFileSize")) != null ? Long.parseLong(s) : 0x100000;
+            boolean reading = (s = map.get("reading")) != null ? Boolean.parseBoolean(s) : false;
+            boolean randomAccess = (s = map.get("randomAccess")) != null ? Boolean.parseBoolean(s) : false;
+            int diskThreads = (s = map.get("diskThreads")) != null || (s = map.get("queueDepth")) != null ? Integer.parseInt(s) : 1;
+            boolean sharedRegion = (s = map.get("sharedRegion")) != null ? Boolean.parseBoolean(s) : false;
+            int asyncDepth = (s = map.get("asyncDepth")) != null ? Integer.parseInt(s) : 0;
+            boolean mmap = (s = map.get("mmap")) != null ? Boolean.parseBoolean(s) : false;
+            int forceEvery = (s = map.get("forceEvery")) != null ? Integer.parseInt(s) : 0;
+            boolean direct = (s = map.get("direct")) != null ? Boolean.parseBoolean(s) : false;
+            long forceInterval = (s = map.get("forceInterval")) != null ? Long.parseLong(s) : 0;
+            boolean forceMetadata = (s = map.get("forceMetadata")) != null ? Boolean.parseBoolean(s) : true;
+            boolean groupCommit = (s = map.get("groupCommit")) != null ? Boolean.parseBoolean(s) : false;
+            boolean appendLog = (s = map.get("appendLog")) != null ? Boolean.parseBoolean(s) : false;
+            int segments = (s = map.get("segments")) != null ? Integer.parseInt(s) : 4;
+            boolean preallocate = (s = map.get("preallocate")) != null ? Boolean.parseBoolean(s) : false;
+
+            DiskWorkload workload = null;
+            if (map.get("readPercent") != null || map.get("blockSizes") != null)
             {
-                clientAddresses = new InetSocketAddress[split.length];
-                for (int i=0;i< split.length; i++)
-                    clientAddresses[i] = socketAddressFromString(split[i]);
+                int readPercent = (s = map.get("readPercent")) != null ? Integer.parseInt(s) : (reading ? 100 : 0);
+                String blockSizes = (s = map.get("blockSizes")) != null ? s : Integer.toString(bufferSize);
+                boolean randomReads = (s = map.get("readAccess")) != null ? "random".equals(s) : randomAccess;
+                boolean randomWrites = (s = map.get("writeAccess")) != null ? "random".equals(s) : randomAccess;
+                workload = DiskWorkload.parse(readPercent, blockSizes, randomReads, randomWrites, map.get("skew"));
             }
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("Starting Disk I/O test with file "+ filePath +" with duration "+ duration + " ms, I/O operation size "+ bufferSize +", max file-size "+ maxSize +" and "+ diskThreads +" threads"+ (sharedRegion ? " sharing the file" : " on disjoint regions"));
+            if (asyncDepth > 0)
+                sb.append(", each keeping "+ asyncDepth +" asynchronous operations in flight");
+            if (mmap)
+                sb.append(", through memory-mapped buffers");
+            if (forceEvery > 0 || forceInterval > 0)
+                sb.append(", forcing "+ (mmap ? "" : forceMetadata ? "data and metadata " : "data only ") +"every "+ (forceEvery > 0 ? forceEvery +" writes" : "") + (forceEvery > 0 && forceInterval > 0 ? " or " : "") + (forceInterval > 0 ? forceInterval +" ms" : "") + (groupCommit ? " with group commit across threads" : ""));
+            if (appendLog)
+                sb.append(" appending "+ bufferSize +" byte records to a log of "+ (preallocate ? "preallocated " : "") +"segments of "+ maxSize +" bytes, keeping the last "+ segments +".");
+            else if (workload != null)
+                sb.append(" running a mixed workload of "+ workload.describe() +".");
+            else if (randomAccess)
+                sb.append(" in random-access mode.");
+            else
+                sb.append(" in sequential-position mode.");
+
+            System.out.println(sb.toString());
+
+            DiskIOTester diskTester = new DiskIOTester(duration, bufferSize, filePath, reading, maxSize, randomAccess, diskThreads, sharedRegion, asyncDepth, mmap, forceEvery);
+            diskTester.setPacer(pacerFromArgs(map, bufferSize));
+            diskTester.setWorkload(workload);
+            diskTester.setForcing(forceInterval, forceMetadata, groupCommit);
+            diskTester.setAppendLog(appendLog, segments, preallocate);
+            diskTester.setDirect(direct);
+            if (direct)
+                System.out.println("Direct I/O bypassing the page cache: buffers, positions and regions aligned to "+ diskTester.alignment() +" byte blocks of "+ Files.getFileStore(Paths.get(filePath)));
+            testers.add(diskTester);
         }
 
+        String fileTree = map.get("fileTree");
+        if (fileTree != null)
+        {
+            int fileSize = (s = map.get("fileSize")) != null ? DiskWorkload.parseSize(s) : 4096;
+            int fanOut = (s = map.get("fanOut")) != null ? Integer.parseInt(s) : 16;
+            int depth = (s = map.get("depth")) != null ? Integer.parseInt(s) : 2;
+            int fileThreads = (s = map.get("diskThreads")) != null || (s = map.get("queueDepth")) != null ? Integer.parseInt(s) : 1;
+            int maxFiles = (s = map.get("maxFiles")) != null ? Integer.parseInt(s) : 100000;
+            String mix = (s = map.get("fileOps")) != null ? s : FileTreeIOTester.DEFAULT_MIX;
+
+            System.out.println("Starting file-tree test in "+ fileTree +" with duration "+ duration +" ms, "+ fileThreads +" threads, "+ fileSize +" byte files in "+ fanOut +"^"+ depth +" directories, at most "+ maxFiles +" files and operations "+ mix +".");
+            FileTreeIOTester treeTester = new FileTreeIOTester(duration, fileSize, fileTree, fanOut, depth, fileThreads, maxFiles, FileTreeIOTester.parseMix(mix));
+            treeTester.setPacer(pacerFromArgs(map, fileSize));
+            testers.add(treeTester);
+        }
 
-        String filePath =  map.get("filePath");
-        if (filePath == null && serverAddress == null && clientAddresses == null)
+        if (serverAddress == null && clientAddresses == null)
+            return testers;
+
+        String engine = (s = map.get("engine")) != null ? s : "blocking";
+        boolean zeroCopy = (s = map.get("zeroCopy")) != null ? Boolean.parseBoolean(s) : false;
+        boolean duplex = (s = map.get("duplex")) != null ? Boolean.parseBoolean(s) : false;
+        boolean echo = (s = map.get("echo")) != null ? Boolean.parseBoolean(s) : false;
+        if ("nio".equals(engine) || zeroCopy)
         {
-            System.out.println(usage());
-            System.exit(1);
+            int eventLoops = (s = map.get("eventLoops")) != null ? Integer.parseInt(s) : NioNetworkIOTester.DEFAULT_EVENT_LOOP_COUNT;
+            System.out.println("Starting TCP Network test with duration "+ duration + " ms, windowSize "+ bufferSize +" bytes and "+ threadCount +" connections for each client address on "+ eventLoops +" event-loops"+ (zeroCopy ? " using zero-copy transfers" : "") + (duplex ? " in full-duplex." : "."));
+            if (reshuffleMillis > 0)
+                throw new IllegalArgumentException("Reshuffling requires the blocking engine.");
+            if (echo)
+                throw new IllegalArgumentException("Request/response mode requires the blocking engine.");
+            NioNetworkIOTester nioTester = new NioNetworkIOTester(serverAddress, clientAddresses, threadCount, eventLoops, duration, bufferSize, zeroCopy, duplex);
+            nioTester.setPacer(pacerFromArgs(map, bufferSize));
+            if (pattern != null)
+                nioTester.setPattern(pattern, peerIndex, 0);
+            testers.add(nioTester);
+            return testers;
         }
 
+        System.out.println("Starting TCP Network test with duration "+ duration + " ms, windowSize "+ bufferSize +" bytes and "+ threadCount +" threads for each client connection"+ (duplex ? " in full-duplex." : "."));
+        int messageSize = (s = map.get("messageSize")) != null ? Integer.parseInt(s) : bufferSize;
+        int responseSize = (s = map.get("responseSize")) != null ? Integer.parseInt(s) : messageSize;
+        int pipelineDepth = (s = map.get("pipeline")) != null ? Integer.parseInt(s) : 1;
+        if (echo)
+            System.out.println("Running request/response with "+ messageSize +" byte requests, "+ responseSize +" byte responses and "+ pipelineDepth +" requests outstanding per connection.");
+
+        NetworkIOTester networkTester = new NetworkIOTester(serverAddress, clientAddresses, threadCount, duration, bufferSize, echo, messageSize, responseSize, pipelineDepth, duplex);
+        networkTester.setPacer(pacerFromArgs(map, bufferSize));
+        if (pattern != null)
+            networkTester.setPattern(pattern, peerIndex, reshuffleMillis);
+        testers.add(networkTester);
+        return testers;
+    }
 
-        //
-        // Shutdown hook to write histograms 
-        //
-        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
-            public void run()
+    /**
+     * @return the rate histograms, and the merged latency histograms and per-peer, per-phase and per-operation breakdowns of the testers, as written to the histogram file
+     */
+    public static String report(Collection<? extends IOTester> testers)
+    {
+        LatencyHistogram rttLatency = rttLatency(testers);
+        Collection<PeerStats> peers = peerStats(testers);
+        Collection<OpStats> ops = opStats(testers);
+        StringBuilder sb = new StringBuilder();
+        sb.append(readHistogram.toString()); 
+        sb.append(writeHistogram.toString()); 
+        sb.append(readLatency(testers).toString()); 
+        sb.append(writeLatency(testers).toString()); 
+        if (rttLatency.getCount() > 0)
+            sb.append(rttLatency.toString()); 
+
+        sb.append(peerTable(peers));
+        sb.append(phaseTable(phaseStats(testers)));
+        sb.append(opTable(ops));
+        for (PeerStats stats : peers)
         {
+            sb.append(stats.readHistogram().toString());
+            sb.append(stats.writeHistogram().toString());
+        }
+        for (OpStats stats : ops)
+        {
+            sb.append(stats.rateHistogram().toString());
+            sb.append(stats.latency().toString());
+        }
+        return sb.toString();
+    }
 
-            File f = new File(System.getProperty("user.dir"), IOTester.histFileName);
-            try
+    /**
+     * Replaces the histogram file atomically, so that a process killed while checkpointing leaves the previous checkpoint intact.
+     */
+    public static synchronized void writeReport(String report)
+    {
+        File f = new File(System.getProperty("user.dir"), IOTester.histFileName);
+        File tmp = new File(f.getPath() +".tmp");
+        try
         {
-            BufferedWriter writer = new BufferedWriter(new FileWriter(f));
+            BufferedWriter writer = new BufferedWriter(new FileWriter(tmp));
             try
-        {
-            writer.write(readHistogram.toString()); 
-            writer.write(writeHistogram.toString()); 
+            {
+                writer.write(report);
+            } finally {
+                writer.close();
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException ioe) {
             ioe.printStackTrace();
-        } finally {
-            writer.close();
         }
+    }
+
+    /**
+     * Writes the rate, per-peer and merged latency histograms of the testers to the binary histogram file, if one was requested.
+     */
+    public static void writeBinaryReport(Collection<? extends IOTester> testers)
+    {
+        List<Histogram> histograms = new ArrayList<Histogram>(Arrays.asList(readHistogram, writeHistogram));
+        for (PeerStats stats : peerStats(testers))
+        {
+            histograms.add(stats.readHistogram());
+            histograms.add(stats.writeHistogram());
+        }
+        List<LatencyHistogram> latencies = new ArrayList<LatencyHistogram>(Arrays.asList(readLatency(testers), writeLatency(testers), rttLatency(testers)));
+        for (OpStats stats : opStats(testers))
+        {
+            histograms.add(stats.rateHistogram());
+            latencies.add(stats.latency());
+        }
+        writeBinaryReport(histograms, latencies);
+    }
+
+    public static synchronized void writeBinaryReport(Collection<Histogram> histograms, Collection<LatencyHistogram> latencies)
+    {
+        if (binaryHistFileName == null)
+            return;
+        try
+        {
+            HistogramTool.write(new File(System.getProperty("user.dir"), binaryHistFileName), histograms, latencies);
         } catch (IOException ioe) {
             ioe.printStackTrace();
         }
-        }}));
+    }
 
+    public static Histogram readHistogram(){return readHistogram;}
+    public static Histogram writeHistogram(){return writeHistogram;}
 
+    public static void main(String[] args) throws IOException
+    {
+        Map<String,String> map = argMap(args);
+        String s = null;
 
-        if (filePath != null)
+        if ((s = map.get("agent")) != null)
         {
-            
-            long maxSize = (s = map.get("maxFileSize")) != null ? Long.parseLong(s) : 0x100000;
-            boolean reading = (s = map.get("reading")) != null ? Boolean.parseBoolean(s) : false;
-            boolean randomAccess = (s = map.get("randomAccess")) != null ? Boolean.parseBoolean(s) : false;
+            if (map.get("metricsPort") != null)
+                new MetricsServer(Integer.parseInt(map.get("metricsPort"))).start();
+            new ClusterAgent(Integer.parseInt(s)).run();
+            return;
+        }
 
-            StringBuilder sb = new StringBuilder();
-            sb.append("Starting Disk I/O test with file "+ filePath +" with duration "+ duration + " ms, I/O operation size "+ bufferSize +" and max file-size "+ maxSize);
-            if (randomAccess)
-                sb.append(" in random-access mode.");
-            else
-                sb.append(" in sequential-position mode.");
+        configure(map);
 
-            System.out.println(sb.toString());
+        if ((s = map.get("agents")) != null)
+        {
+            ClusterCoordinator coordinator = new ClusterCoordinator(ClusterCoordinator.agentAddresses(s), map);
+            String report = coordinator.run();
+            System.out.print(report);
+            writeReport(report);
+            AgentReport total = coordinator.total();
+            List<Histogram> histograms = new ArrayList<Histogram>(Arrays.asList(total.readHistogram(), total.writeHistogram()));
+            List<LatencyHistogram> latencies = new ArrayList<LatencyHistogram>(Arrays.asList(total.readLatency(), total.writeLatency(), total.rttLatency()));
+            for (OpStats stats : total.ops())
+            {
+                histograms.add(stats.rateHistogram());
+                latencies.add(stats.latency());
+            }
+            writeBinaryReport(histograms, latencies);
+            return;
+        }
 
-            new Thread(new DiskIOTester(duration, bufferSize, filePath, reading, maxSize, randomAccess)).start();
+        final List<IOTester> testers = testersFromArgs(map);
+        if (testers.isEmpty())
+        {
+            System.out.println(usage());
+            System.exit(1);
         }
 
-        if (serverAddress == null && clientAddresses == null)
-            return;
+        //
+        // Shutdown hook to write histograms 
+        //
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+            public void run()
+            {
+                closeTimeSeries();
+                writeReport(report(testers));
+                writeBinaryReport(testers);
+            }}));
+
+        if ((s = map.get("metricsPort")) != null)
+            new MetricsServer(Integer.parseInt(s)).start();
 
-        System.out.println("Starting TCP Network test with duration "+ duration + " ms, windowSize "+ bufferSize +" bytes and "+ threadCount +" threads for each client connection.");
-        new Thread(new NetworkIOTester(serverAddress, clientAddresses, threadCount, duration, bufferSize)).start();
+        int checkpointSeconds = (s = map.get("checkpoint")) != null ? Integer.parseInt(s) : 0;
+        if (checkpointSeconds > 0)
+        {
+            ScheduledExecutorService checkpoints = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "checkpoint");
+                    thread.setDaemon(true);
+                    return thread;
+                }});
+            checkpoints.scheduleAtFixedRate(new Runnable(){
+                public void run()
+                {
+                    writeReport(report(testers));
+                    writeBinaryReport(testers);
+                }}, checkpointSeconds, checkpointSeconds, TimeUnit.SECONDS);
         }
 
+        for (IOTester tester : testers)
+            new Thread(tester).start();
+    }
+
 }
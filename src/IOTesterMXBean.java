@@ -0,0 +1,35 @@
+package im.boddy.iotester;
+
+import java.util.*;
+
+/**
+ * Live metrics of a running tester, registered with the platform MBean server as
+ * im.boddy.iotester:type=IOTester,name=<tester> for as long as the tester runs.
+ * Rates are over the last tick; latencies are this tester's own since the start of the run,
+ * in microseconds. Connection counters cover the connections currently open, keyed by
+ * local port and remote address.
+ */
+public interface IOTesterMXBean
+{
+    float getReadRate();
+    float getWriteRate();
+    float getTransactionRate();
+
+    long getTotalRead();
+    long getTotalWrite();
+    long getTotalTransactions();
+
+    int getOpenConnections();
+
+    double getReadLatencyP50();
+    double getReadLatencyP99();
+    double getWriteLatencyP50();
+    double getWriteLatencyP99();
+    double getRoundTripTimeP50();
+    double getRoundTripTimeP99();
+
+    Map<String, Long> getPeerBytesRead();
+    Map<String, Long> getPeerBytesWritten();
+    Map<String, Long> getConnectionBytesRead();
+    Map<String, Long> getConnectionBytesWritten();
+}
@@ -0,0 +1,271 @@
+package im.boddy.iotester;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Log-linear histogram of nanosecond latencies. Each power of two is split into
+ * 2^subBucketBits linear sub-buckets, so any value is resolved to within a
+ * relative error of 2^-subBucketBits using a fixed, small array of counts.
+ */
+public class LatencyHistogram
+{
+    /**
+     * Thread safe and lock-free
+     */
+    public static final int DEFAULT_SUB_BUCKET_BITS = 7;
+    public static final double[] REPORTED_PERCENTILES = {50, 90, 99, 99.9};
+
+    private final AtomicLongArray counts;
+    private final LongAdder totalCount, totalValue;
+    private final LongAccumulator min, max;
+    private final int subBucketBits, subBucketCount;
+    private final String title;
+
+    public LatencyHistogram(String title)
+    {
+        this(title, DEFAULT_SUB_BUCKET_BITS);
+    }
+
+    public LatencyHistogram(String title, int subBucketBits)
+    {
+        if (subBucketBits < 1 || subBucketBits > 16)
+            throw new IllegalArgumentException("require 1 <= subBucketBits <= 16");
+
+        this.subBucketBits = subBucketBits;
+        this.subBucketCount = 1 << subBucketBits;
+        this.counts = new AtomicLongArray((64 - subBucketBits + 1) * subBucketCount);
+        this.totalCount = new LongAdder();
+        this.totalValue = new LongAdder();
+        this.min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        this.max = new LongAccumulator(Math::max, 0);
+        this.title = title;
+    }
+
+    public int getBucket(long value)
+    {
+        if (value < subBucketCount)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        int subBucket = (int) (value >>> shift) - subBucketCount;
+        return (shift + 1) * subBucketCount + subBucket;
+    }
+
+    public long bucketLowerBound(int iBucket)
+    {
+        if (iBucket < subBucketCount)
+            return iBucket;
+
+        int shift = iBucket / subBucketCount - 1;
+        long subBucket = iBucket % subBucketCount;
+        return (subBucketCount + subBucket) << shift;
+    }
+
+    public long bucketUpperBound(int iBucket)
+    {
+        if (iBucket < subBucketCount)
+            return iBucket;
+
+        int shift = iBucket / subBucketCount - 1;
+        return bucketLowerBound(iBucket) + (1L << shift) - 1;
+    }
+
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+            nanos = 0;
+
+        counts.incrementAndGet(getBucket(nanos));
+        totalCount.increment();
+        totalValue.add(nanos);
+        min.accumulate(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * Adds the counts of another histogram with the same resolution, eg. one collected on another node.
+     */
+    public void merge(LatencyHistogram other)
+    {
+        if (other.subBucketBits != subBucketBits)
+            throw new IllegalArgumentException("Cannot merge latency histograms with different resolutions.");
+
+        for (int i=0; i < counts.length(); i++)
+        {
+            long count = other.counts.get(i);
+            if (count > 0)
+                counts.addAndGet(i, count);
+        }
+        totalCount.add(other.totalCount.sum());
+        totalValue.add(other.totalValue.sum());
+        min.accumulate(other.min.get());
+        max.accumulate(other.max.get());
+    }
+
+    /**
+     * @return an independent copy, consistent only if nothing is being recorded concurrently
+     */
+    public LatencyHistogram copy()
+    {
+        LatencyHistogram copy = new LatencyHistogram(title, subBucketBits);
+        copy.merge(this);
+        return copy;
+    }
+
+    /**
+     * @return a histogram of the values recorded since the given earlier copy(), whose min and max are bucket bounds
+     */
+    public LatencyHistogram since(LatencyHistogram earlier)
+    {
+        if (earlier.subBucketBits != subBucketBits)
+            throw new IllegalArgumentException("Cannot subtract latency histograms with different resolutions.");
+
+        LatencyHistogram interval = new LatencyHistogram(title, subBucketBits);
+        for (int i=0; i < counts.length(); i++)
+        {
+            long count = counts.get(i) - earlier.counts.get(i);
+            if (count <= 0)
+                continue;
+            interval.counts.set(i, count);
+            interval.min.accumulate(Math.max(getMin(), bucketLowerBound(i)));
+            interval.max.accumulate(Math.min(getMax(), bucketUpperBound(i)));
+        }
+        interval.totalCount.add(totalCount.sum() - earlier.totalCount.sum());
+        interval.totalValue.add(totalValue.sum() - earlier.totalValue.sum());
+        return interval;
+    }
+
+    /**
+     * Not atomic with respect to concurrent record() calls.
+     */
+    public void reset()
+    {
+        for (int i=0; i < counts.length(); i++)
+            counts.set(i, 0);
+        totalCount.reset();
+        totalValue.reset();
+        min.reset();
+        max.reset();
+    }
+
+    /**
+     * Writes the resolution, the totals and the non-empty buckets as varint (gap from the previous bucket, count) pairs.
+     */
+    public void writeTo(DataOutput out) throws IOException
+    {
+        out.writeUTF(title != null ? title : "");
+        out.writeByte(subBucketBits);
+        VarInt.write(out, totalCount.sum());
+        VarInt.write(out, totalValue.sum());
+        VarInt.write(out, getMin());
+        VarInt.write(out, max.get());
+
+        long[] snapshot = new long[counts.length()];
+        int nonEmpty = 0;
+        for (int i=0; i < snapshot.length; i++)
+            if ((snapshot[i] = counts.get(i)) > 0)
+                nonEmpty++;
+        VarInt.write(out, nonEmpty);
+
+        int previous = -1;
+        for (int i=0; i < snapshot.length; i++)
+        {
+            if (snapshot[i] <= 0)
+                continue;
+            VarInt.write(out, i - previous - 1);
+            VarInt.write(out, snapshot[i]);
+            previous = i;
+        }
+    }
+
+    public static LatencyHistogram readFrom(DataInput in) throws IOException
+    {
+        LatencyHistogram histogram = new LatencyHistogram(in.readUTF(), in.readUnsignedByte());
+        long count = VarInt.read(in);
+        histogram.totalCount.add(count);
+        histogram.totalValue.add(VarInt.read(in));
+        long min = VarInt.read(in);
+        if (count > 0)
+            histogram.min.accumulate(min);
+        histogram.max.accumulate(VarInt.read(in));
+
+        int i = -1;
+        for (long nonEmpty = VarInt.read(in); nonEmpty > 0; nonEmpty--)
+        {
+            i += VarInt.read(in) + 1;
+            if (i >= histogram.counts.length())
+                throw new IOException("Bucket "+ i +" out of range.");
+            histogram.counts.set(i, VarInt.read(in));
+        }
+        return histogram;
+    }
+
+    public String title(){return title;}
+    public long getCount(){return totalCount.sum();}
+    public long getMax(){return max.get();}
+
+    public long getMin()
+    {
+        long value = min.get();
+        return value == Long.MAX_VALUE ? 0 : value;
+    }
+
+    public double getMean()
+    {
+        long count = totalCount.sum();
+        if (count == 0)
+            return 0;
+        return (double) totalValue.sum() / count;
+    }
+
+    /**
+     * @return the midpoint of the bucket holding the requested percentile, clamped to the recorded min and max
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        if (percentile < 0 || 100 < percentile)
+            throw new IllegalArgumentException("require 0 <= percentile <= 100");
+
+        long count = totalCount.sum();
+        if (count == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        if (target >= count)
+            return getMax();
+
+        long seen = 0;
+        for (int i=0; i < counts.length(); i++)
+        {
+            if ((seen += counts.get(i)) < target)
+                continue;
+
+            long value = (bucketLowerBound(i) + bucketUpperBound(i)) / 2;
+            return Math.max(getMin(), Math.min(value, getMax()));
+        }
+        return getMax();
+    }
+
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("title : "+ title +"\n");
+        sb.append("count : "+ getCount() +"\n");
+        sb.append("mean : "+ toMicros(getMean()) +" us\n");
+        for (double percentile : REPORTED_PERCENTILES)
+            sb.append("p"+ percentileLabel(percentile) +" : "+ toMicros(getValueAtPercentile(percentile)) +" us\n");
+        sb.append("max : "+ toMicros(getMax()) +" us\n");
+        return sb.toString();
+    }
+
+    public static double toMicros(double nanos)
+    {
+        return nanos / 1000.;
+    }
+
+    public static String percentileLabel(double percentile)
+    {
+        return percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile);
+    }
+}
@@ -0,0 +1,189 @@
+package im.boddy.iotester;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Publishes the metrics of every running tester: each is registered as an MXBean,
+ * and an optional embedded HTTP server renders them at /metrics in the Prometheus
+ * text format, so that monitoring can scrape long runs instead of parsing stdout.
+ */
+public class MetricsServer
+{
+    /**
+     * Thread safe
+     */
+    private static final Queue<IOTester> running = new ConcurrentLinkedQueue<IOTester>();
+
+    private final HttpServer server;
+
+    public MetricsServer(int port) throws IOException
+    {
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.createContext("/metrics", new HttpHandler(){
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                byte[] body = prometheusText().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                try
+                {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }});
+        //
+        // Scrapes must not be served by, or delay, any I/O thread
+        //
+        this.server.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "metrics");
+                thread.setDaemon(true);
+                return thread;
+            }}));
+    }
+
+    public void start()
+    {
+        server.start();
+        System.out.println("Serving metrics at http://"+ server.getAddress().getHostString() +":"+ port() +"/metrics");
+    }
+
+    public int port(){return server.getAddress().getPort();}
+
+    public void close()
+    {
+        server.stop(0);
+    }
+
+    public static ObjectName objectName(IOTester tester)
+    {
+        try
+        {
+            return new ObjectName("im.boddy.iotester:type=IOTester,name="+ tester.name());
+        } catch (MalformedObjectNameException mone) {
+            throw new IllegalStateException(mone);
+        }
+    }
+
+    static void register(IOTester tester)
+    {
+        running.add(tester);
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(tester, objectName(tester));
+        } catch (JMException jme) {
+            jme.printStackTrace();
+        }
+    }
+
+    static void unregister(IOTester tester)
+    {
+        running.remove(tester);
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(tester));
+        } catch (JMException jme) {
+            jme.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the metrics of every running tester in the Prometheus text exposition format
+     */
+    public static String prometheusText()
+    {
+        List<IOTester> testers = new ArrayList<IOTester>(running);
+        StringBuilder sb = new StringBuilder();
+
+        metric(sb, "iotester_read_rate_mb_per_second", "gauge", "Read rate over the last tick.");
+        for (IOTester tester : testers)
+            sample(sb, "iotester_read_rate_mb_per_second", "tester", tester.name(), tester.getReadRate());
+        metric(sb, "iotester_write_rate_mb_per_second", "gauge", "Write rate over the last tick.");
+        for (IOTester tester : testers)
+            sample(sb, "iotester_write_rate_mb_per_second", "tester", tester.name(), tester.getWriteRate());
+        metric(sb, "iotester_transaction_rate_per_second", "gauge", "Transactions per second over the last tick.");
+        for (IOTester tester : testers)
+            sample(sb, "iotester_transaction_rate_per_second", "tester", tester.name(), tester.getTransactionRate());
+        metric(sb, "iotester_read_bytes_total", "counter", "Bytes read since the start of the run.");
+        for (IOTester tester : testers)
+            sample(sb, "iotester_read_bytes_total", "tester", tester.name(), tester.getTotalRead());
+        metric(sb, "iotester_written_bytes_total", "counter", "Bytes written since the start of the run.");
+        for (IOTester tester : testers)
+            sample(sb, "iotester_written_bytes_total", "tester", tester.name(), tester.getTotalWrite());
+        metric(sb, "iotester_transactions_total", "counter", "Transactions since the start of the run.");
+        for (IOTester tester : testers)
+            sample(sb, "iotester_transactions_total", "tester", tester.name(), tester.getTotalTransactions());
+        metric(sb, "iotester_open_connections", "gauge", "Connections currently open.");
+        for (IOTester tester : testers)
+            sample(sb, "iotester_open_connections", "tester", tester.name(), tester.getOpenConnections());
+
+        metric(sb, "iotester_latency_seconds", "summary", "Operation latency since the start of the run.");
+        for (IOTester tester : testers)
+        {
+            latency(sb, tester.name(), "read", tester.readLatency());
+            latency(sb, tester.name(), "write", tester.writeLatency());
+            latency(sb, tester.name(), "round_trip", tester.rttLatency());
+        }
+
+        Collection<PeerStats> peers = IOTester.peerStats(testers);
+        metric(sb, "iotester_peer_read_bytes_total", "counter", "Bytes read from each peer host.");
+        for (PeerStats stats : peers)
+            sample(sb, "iotester_peer_read_bytes_total", "peer", stats.peer(), stats.totalRead());
+        metric(sb, "iotester_peer_written_bytes_total", "counter", "Bytes written to each peer host.");
+        for (PeerStats stats : peers)
+            sample(sb, "iotester_peer_written_bytes_total", "peer", stats.peer(), stats.totalWrite());
+        metric(sb, "iotester_peer_connections", "gauge", "Connections opened to or from each peer host.");
+        for (PeerStats stats : peers)
+            sample(sb, "iotester_peer_connections", "peer", stats.peer(), stats.connections());
+
+        metric(sb, "iotester_connection_read_bytes_total", "counter", "Bytes read on each open connection.");
+        for (IOTester tester : testers)
+            for (Map.Entry<String, Long> entry : tester.getConnectionBytesRead().entrySet())
+                sample(sb, "iotester_connection_read_bytes_total", label("tester", tester.name()) +","+ label("connection", entry.getKey()), entry.getValue());
+        metric(sb, "iotester_connection_written_bytes_total", "counter", "Bytes written on each open connection.");
+        for (IOTester tester : testers)
+            for (Map.Entry<String, Long> entry : tester.getConnectionBytesWritten().entrySet())
+                sample(sb, "iotester_connection_written_bytes_total", label("tester", tester.name()) +","+ label("connection", entry.getKey()), entry.getValue());
+        return sb.toString();
+    }
+
+    private static void latency(StringBuilder sb, String tester, String op, LatencyHistogram histogram)
+    {
+        String labels = label("tester", tester) +","+ label("op", op);
+        for (double percentile : LatencyHistogram.REPORTED_PERCENTILES)
+            sample(sb, "iotester_latency_seconds", labels +","+ label("quantile", Double.toString(percentile / 100)), histogram.getValueAtPercentile(percentile) / 1.e9);
+        sample(sb, "iotester_latency_seconds_sum", labels, histogram.getMean() * histogram.getCount() / 1.e9);
+        sample(sb, "iotester_latency_seconds_count", labels, histogram.getCount());
+    }
+
+    private static void metric(StringBuilder sb, String name, String type, String help)
+    {
+        sb.append("# HELP "+ name +" "+ help +"\n");
+        sb.append("# TYPE "+ name +" "+ type +"\n");
+    }
+
+    private static void sample(StringBuilder sb, String name, String label, String value, double sample)
+    {
+        sample(sb, name, label(label, value), sample);
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double sample)
+    {
+        sb.append(name +"{"+ labels +"} "+ sample +"\n");
+    }
+
+    private static String label(String label, String value)
+    {
+        return label +"=\""+ value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") +"\"";
+    }
+}
@@ -1,12 +1,15 @@
 package im.boddy.iotester;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 import java.net.*;
 import java.io.*;
 
 public class NetworkIOTester extends IOTester 
 {
+    public static final int CONNECT_TIMEOUT_MS = 10000;
+
     /**
      * Thread safe
      */ 
@@ -32,28 +35,43 @@ public class NetworkIOTester extends IOTester
                 {
                     Socket s = ssocket.accept();
                     setSocketParams(s);                    
-                    ConnectionHandler handler = new ConnectionHandler(s);
+                    StreamCounter stream = newStream(s);
+                    ConnectionEndPoint handler = echo ? new EchoHandler(s, stream) : new ConnectionHandler(s, stream);
                     System.out.println("Starting handler.");
                     new Thread(handler).start();
+                    if (duplex)
+                        new Thread(new Client(s, stream)).start();
                 } catch (SocketTimeoutException ste){
                 } catch (Throwable t) {
-                    t.printStackTrace();
+                    if (! NetworkIOTester.this.isClosed)
+                        t.printStackTrace();
                 }
             }
+            close();
+        }
+
+        void close()
+        {
+            try
+            {
+                ssocket.close();
+            } catch (IOException ioe) {}
         }
     }
 
     abstract class ConnectionEndPoint implements Runnable
     {
         final Socket socket;
+        final StreamCounter stream;
         final DataInputStream in;
         final DataOutputStream out;
         final byte[] buffer;
         volatile boolean isClosed;
 
-        ConnectionEndPoint(Socket s) throws IOException
+        ConnectionEndPoint(Socket s, StreamCounter stream) throws IOException
         {
             this.socket = s;
+            this.stream = stream;
 
             this.in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
             this.out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
@@ -63,10 +81,24 @@ public class NetworkIOTester extends IOTester
 
         abstract void doIO() throws IOException;
 
-        void close() 
+        void readFully(int length) throws IOException
+        {
+            for (int nRead = 0; nRead < length; nRead += Math.min(buffer.length, length - nRead))
+                in.readFully(buffer, 0, Math.min(buffer.length, length - nRead));
+        }
+
+        void write(int length) throws IOException
         {
+            for (int nWritten = 0; nWritten < length; nWritten += Math.min(buffer.length, length - nWritten))
+                out.write(buffer, 0, Math.min(buffer.length, length - nWritten));
+        }
 
+        void close() 
+        {
+            if (isClosed)
+                return;
             isClosed = true;
+            stream.close();
             System.out.println("Closing "+ this);
             try
             {
@@ -106,43 +138,188 @@ public class NetworkIOTester extends IOTester
 
     class ConnectionHandler extends ConnectionEndPoint 
     {
-        ConnectionHandler(Socket s) throws IOException
+        ConnectionHandler(Socket s, StreamCounter stream) throws IOException
         {
-            super(s);
+            super(s, stream);
         }
 
         void doIO() throws IOException
         {
+            long start = System.nanoTime();
             in.readFully(buffer);    
-            readCount.addAndGet(buffer.length); 
+            readLatency.record(System.nanoTime() - start);
+            readCount.add(buffer.length); 
+            stream.addRead(buffer.length);
         }
     }
 
     class Client extends ConnectionEndPoint
     {
-        Client (Socket s) throws IOException
+        Client (Socket s, StreamCounter stream) throws IOException
         {
-            super(s);
+            super(s, stream);
             random.nextBytes(buffer);
         }
 
         void doIO() throws IOException
         {
+            long start = startOperation();
             out.write(buffer);
             out.flush();
-            writeCount.addAndGet(buffer.length);
+            writeLatency.record(System.nanoTime() - start);
+            writeCount.add(buffer.length);
+            stream.addWrite(buffer.length);
+        }
+    }
+
+    /**
+     * Request/response protocol: each request is an int payload length, an int response length and the payload,
+     * answered by a response of the requested length.
+     */
+    class EchoHandler extends ConnectionEndPoint
+    {
+        EchoHandler(Socket s, StreamCounter stream) throws IOException
+        {
+            super(s, stream);
+        }
+
+        void doIO() throws IOException
+        {
+            int messageLength = in.readInt();
+            int responseLength = in.readInt();
+            readFully(messageLength);
+            readCount.add(messageLength);
+            stream.addRead(messageLength);
+
+            write(responseLength);
+            out.flush();
+            writeCount.add(responseLength);
+            stream.addWrite(responseLength);
+        }
+    }
+
+    /**
+     * Keeps up to pipelineDepth requests outstanding and records the round-trip time of each. Responses are read by
+     * their own thread, so that a client blocked writing a request never stops the responses queued behind it from draining.
+     */
+    class EchoClient extends ConnectionEndPoint
+    {
+        //
+        // The send times of outstanding requests, in order, and a permit for each request that may still be sent
+        //
+        private final BlockingQueue<Long> sendTimes = new LinkedBlockingQueue<Long>();
+        private final Semaphore window = new Semaphore(pipelineDepth);
+        private final ResponseReader responses;
+
+        EchoClient(Socket s, StreamCounter stream) throws IOException
+        {
+            super(s, stream);
+            random.nextBytes(buffer);
+            this.responses = new ResponseReader(s, stream);
+        }
+
+        public void run()
+        {
+            new Thread(responses).start();
+            super.run();
+        }
+
+        void doIO() throws IOException
+        {
+            try
+            {
+                if (! window.tryAcquire(100, TimeUnit.MILLISECONDS))
+                    return;
+            } catch (InterruptedException ie) {
+                return;
+            }
+
+            //
+            // Queued before the request is written, since its response may be read before the write returns
+            //
+            sendTimes.add(startOperation());
+            out.writeInt(messageSize);
+            out.writeInt(responseSize);
+            write(messageSize);
+            out.flush();
+            writeCount.add(messageSize);
+            stream.addWrite(messageSize);
+        }
+
+        void close()
+        {
+            boolean wasClosed = isClosed;
+            super.close();
+            if (! wasClosed)
+                responses.close();
+        }
+
+        class ResponseReader extends ConnectionEndPoint
+        {
+            ResponseReader(Socket s, StreamCounter stream) throws IOException
+            {
+                super(s, stream);
+            }
+
+            void doIO() throws IOException
+            {
+                readFully(responseSize);
+                rttLatency.record(System.nanoTime() - sendTimes.poll());
+                readCount.add(responseSize);
+                stream.addRead(responseSize);
+                transactionCount.increment();
+                window.release();
+            }
+
+            void close()
+            {
+                boolean wasClosed = isClosed;
+                super.close();
+                if (! wasClosed)
+                    EchoClient.this.close();
+            }
         }
     }
 
     final Server server;
-    final InetSocketAddress[] clientAddresses; 
-    final Client[] clients;
+    //
+    // Replaced by reshuffle()
+    //
+    volatile InetSocketAddress[] clientAddresses; 
+    volatile ConnectionEndPoint[] clients;
     final int threadCount;
+    final boolean echo, duplex;
+    final int messageSize, responseSize, pipelineDepth;
 
     public NetworkIOTester(InetSocketAddress serverAddress, InetSocketAddress[] clientAddresses, int threadCount, int duration, int bufferSize) throws IOException
+    {
+        this(serverAddress, clientAddresses, threadCount, duration, bufferSize, false, bufferSize, bufferSize, 1, false);
+    }
+
+    /**
+     * @param echo if true, handlers answer every request and clients measure round-trip times instead of streaming
+     * @param messageSize request payload size in echo mode
+     * @param responseSize response size requested by clients in echo mode
+     * @param pipelineDepth number of requests each client keeps outstanding in echo mode
+     * @param duplex if true, both ends of every connection stream in both directions at once, each direction on its own thread
+     */
+    public NetworkIOTester(InetSocketAddress serverAddress, InetSocketAddress[] clientAddresses, int threadCount, int duration, int bufferSize, boolean echo, int messageSize, int responseSize, int pipelineDepth, boolean duplex) throws IOException
     {
         super(duration, bufferSize);
 
+        if (echo && duplex)
+            throw new IllegalArgumentException("Echo and duplex modes are exclusive.");
+
+        if (messageSize < 0 || responseSize < 0)
+            throw new IllegalArgumentException("Message and response sizes must not be negative.");
+        if (pipelineDepth <= 0)
+            throw new IllegalArgumentException("Pipeline depth must be greater than zero.");
+
+        this.echo = echo;
+        this.duplex = duplex;
+        this.messageSize = messageSize;
+        this.responseSize = responseSize;
+        this.pipelineDepth = pipelineDepth;
 
         this.threadCount = threadCount;
         if (serverAddress == null)
@@ -158,39 +335,59 @@ public class NetworkIOTester extends IOTester
         else
         {
             this.clientAddresses = clientAddresses;
-            this.clients = new Client[clientAddresses.length * threadCount];
+            this.clients = new ConnectionEndPoint[clientAddresses.length * threadCount];
         }
 
     }   
 
-    void initClients() 
+    /**
+     * Connects threadCount clients to each address, and registers them in target unless the tester was closed or
+     * reshuffled meanwhile. Connecting is not synchronized, so that a destination that is down delays neither close() nor a later reshuffle.
+     */
+    void initClients(ConnectionEndPoint[] target, InetSocketAddress[] addresses)
     {
-        for (int iClient=0; iClient < clientAddresses.length; iClient++)
+        for (int iClient=0; iClient < addresses.length; iClient++)
         {
-            InetSocketAddress address = clientAddresses[iClient];
+            InetSocketAddress address = addresses[iClient];
             if (address == null)
                 continue;
             for (int iThread=0;iThread < threadCount; iThread++)
             {
-                Client client = null;
+                ConnectionEndPoint client = null;
                 try
                 {
                     Socket s = new Socket();
                     setSocketParams(s);   
-                    s.connect(address);   
-
-                    client = new Client(s);
-                    clients[iClient * threadCount + iThread] = client; 
+                    s.connect(address, CONNECT_TIMEOUT_MS);
+
+                    StreamCounter stream = newStream(s);
+                    client = echo ? new EchoClient(s, stream) : new Client(s, stream);
+                    if (! register(target, iClient * threadCount + iThread, client))
+                    {
+                        client.close();
+                        return;
+                    }
                     System.out.println("Starting client to server-address "+ address);
                     new Thread(client).start();
+                    if (duplex)
+                        new Thread(new ConnectionHandler(s, stream)).start();
                 } catch (Exception e) {
                     e.printStackTrace();
-                    client.close();
+                    if (client != null)
+                        client.close();
                 }
             }
         }
     } 
 
+    private synchronized boolean register(ConnectionEndPoint[] target, int index, ConnectionEndPoint client)
+    {
+        if (isClosed || clients != target)
+            return false;
+        target[index] = client;
+        return true;
+    }
+
     public void init()
     {
         if (server != null)
@@ -201,16 +398,53 @@ public class NetworkIOTester extends IOTester
         if (clients != null)
         {
             System.out.println("Starting clients.");
-            initClients();
+            initClients(clients, clientAddresses);
         }
     }
 
 
+    protected boolean supportsReshuffle()
+    {
+        return true;
+    }
+
+    /**
+     * Closes every client connection and connects to the new destinations instead, keeping the server running.
+     * The new connections are made on their own thread, so that the tick thread keeps sampling.
+     */
+    protected void reshuffle(final InetSocketAddress[] destinations)
+    {
+        final ConnectionEndPoint[] target;
+        synchronized (this)
+        {
+            if (isClosed)
+                return;
+
+            ConnectionEndPoint[] previous = clients;
+            if (previous != null)
+                for (ConnectionEndPoint client : previous)
+                    if (client != null && ! client.isClosed)
+                        client.close();
+
+            clientAddresses = destinations;
+            clients = target = new ConnectionEndPoint[destinations.length * threadCount];
+        }
+        System.out.println("Reshuffled clients to "+ Arrays.toString(destinations));
+        new Thread(new Runnable(){
+            public void run()
+            {
+                initClients(target, destinations);
+            }}, "reshuffle").start();
+    }
+
     public void setSocketParams(Socket s) throws IOException
     {
         s.setReceiveBufferSize(bufferSize);
         s.setSendBufferSize(bufferSize);
-        s.setTcpNoDelay(false);
+        //
+        // Small requests must not wait on Nagle's algorithm in echo mode
+        //
+        s.setTcpNoDelay(echo);
 
         /*
            int connectionTime = 0;
@@ -224,9 +458,11 @@ public class NetworkIOTester extends IOTester
     public synchronized void close()
     {
         super.close();
+        if (server != null)
+            server.close();
         if (clients != null)
         {
-            for (Client client :  clients)
+            for (ConnectionEndPoint client :  clients)
                 if (client != null && ! client.isClosed)
                     client.close();
         }
@@ -0,0 +1,603 @@
+package im.boddy.iotester;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.net.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Network tester driving every connection from a small pool of selector
+ * event-loops rather than a thread per socket.
+ */
+public class NioNetworkIOTester extends IOTester
+{
+    public static final int DEFAULT_EVENT_LOOP_COUNT = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    /**
+     * Thread safe
+     */
+    class Acceptor implements Runnable
+    {
+        private final InetSocketAddress address;
+        private final ServerSocketChannel ssChannel;
+        private final Selector selector;
+
+        Acceptor(InetSocketAddress address) throws IOException
+        {
+            this.address = address;
+            this.ssChannel = ServerSocketChannel.open();
+            this.ssChannel.bind(address, ACCEPT_BACKLOG);
+            this.ssChannel.configureBlocking(false);
+            this.selector = Selector.open();
+            this.ssChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        public void run()
+        {
+            while(! NioNetworkIOTester.this.isClosed)
+            {
+                try
+                {
+                    selector.select(1000);
+                    selector.selectedKeys().clear();
+
+                    SocketChannel channel;
+                    while ((channel = ssChannel.accept()) != null)
+                    {
+                        setSocketParams(channel);
+                        StreamCounter stream = newStream(channel.socket());
+                        ChannelHandler handler = new ChannelHandler(channel, stream);
+                        nextEventLoop().register(duplex ? new DuplexEndPoint(handler, newSender(channel, stream)) : handler);
+                    }
+                } catch (Throwable t) {
+                    if (! NioNetworkIOTester.this.isClosed)
+                        t.printStackTrace();
+                }
+            }
+            close();
+        }
+
+        void close()
+        {
+            try
+            {
+                selector.close();
+                ssChannel.close();
+            } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     * Thread safe
+     */
+    class EventLoop implements Runnable
+    {
+        private final Selector selector;
+        private final Queue<ChannelEndPoint> pending = new ConcurrentLinkedQueue<ChannelEndPoint>();
+        //
+        // Paced senders waiting for their next slot, confined to the loop thread
+        //
+        private final PriorityQueue<ChannelEndPoint> parked = new PriorityQueue<ChannelEndPoint>(11, new Comparator<ChannelEndPoint>(){
+            public int compare(ChannelEndPoint a, ChannelEndPoint b)
+            {
+                return Long.compare(a.transferStart, b.transferStart);
+            }});
+
+        EventLoop() throws IOException
+        {
+            this.selector = Selector.open();
+        }
+
+        void register(ChannelEndPoint endPoint)
+        {
+            pending.add(endPoint);
+            selector.wakeup();
+        }
+
+        private void registerPending()
+        {
+            ChannelEndPoint endPoint;
+            while ((endPoint = pending.poll()) != null)
+            {
+                try
+                {
+                    endPoint.channel.configureBlocking(false);
+                    endPoint.registered(endPoint.channel.register(selector, endPoint.interestOps(), endPoint), this);
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                    endPoint.close();
+                }
+            }
+        }
+
+        /**
+         * Only the write interest is dropped, so that the reading half of a duplex end-point keeps running.
+         */
+        void park(ChannelEndPoint endPoint)
+        {
+            endPoint.key.interestOps(endPoint.key.interestOps() & ~SelectionKey.OP_WRITE);
+            parked.add(endPoint);
+        }
+
+        private void unparkDue()
+        {
+            long now = System.nanoTime();
+            while (! parked.isEmpty() && parked.peek().transferStart <= now)
+            {
+                ChannelEndPoint endPoint = parked.poll();
+                if (endPoint.key.isValid())
+                    endPoint.key.interestOps(endPoint.key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private long selectTimeoutMillis()
+        {
+            if (parked.isEmpty())
+                return 1000;
+            return Math.max(0, (parked.peek().transferStart - System.nanoTime()) / 1000000);
+        }
+
+        public void run()
+        {
+            while(true)
+            {
+                try
+                {
+                    //
+                    // Dont start I/O operations until the timer is started
+                    //
+                    latch.await();
+                    break;
+                } catch (InterruptedException ie){}
+            }
+
+            try
+            {
+                while(! NioNetworkIOTester.this.isClosed)
+                {
+                    try
+                    {
+                        long timeout = selectTimeoutMillis();
+                        if (timeout > 0)
+                            selector.select(timeout);
+                        else
+                            selector.selectNow();
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace();
+                        continue;
+                    }
+                    registerPending();
+                    unparkDue();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext())
+                    {
+                        SelectionKey key = it.next();
+                        it.remove();
+
+                        ChannelEndPoint endPoint = (ChannelEndPoint) key.attachment();
+                        if (! key.isValid())
+                            continue;
+                        try
+                        {
+                            endPoint.doIO();
+                        } catch (IOException ioe) {
+                            //
+                            // Unlike a blocked stream, a broken channel stays ready forever: always close it
+                            //
+                            ioe.printStackTrace();
+                            endPoint.close();
+                        }
+                    }
+                }
+
+                for (SelectionKey key : selector.keys())
+                    ((ChannelEndPoint) key.attachment()).close();
+                try
+                {
+                    selector.close();
+                } catch (IOException ioe) {}
+            } finally {
+                loopsExited.countDown();
+            }
+        }
+    }
+
+    abstract class ChannelEndPoint
+    {
+        final SocketChannel channel;
+        final StreamCounter stream;
+        volatile boolean isClosed;
+        SelectionKey key;
+        EventLoop loop;
+        //
+        // A transfer may take several readiness events, its latency is measured from the first, or from its paced slot
+        //
+        long transferStart;
+        boolean inTransfer, scheduled;
+
+        ChannelEndPoint(SocketChannel channel, StreamCounter stream)
+        {
+            this.channel = channel;
+            this.stream = stream;
+        }
+
+        /**
+         * Starts sending the next buffer, unless a target rate is set and its slot is not yet due, 
+         * in which case the end-point is parked on its event-loop until then.
+         *
+         * @return true if the transfer may start
+         */
+        boolean startTransfer()
+        {
+            Pacer p = pacer;
+            if (p == null)
+                transferStart = System.nanoTime();
+            else
+            {
+                if (! scheduled)
+                {
+                    transferStart = p.reserve();
+                    scheduled = true;
+                }
+                if (System.nanoTime() < transferStart)
+                {
+                    loop.park(this);
+                    return false;
+                }
+                scheduled = false;
+            }
+            inTransfer = true;
+            return true;
+        }
+
+        abstract int interestOps();
+
+        void registered(SelectionKey key, EventLoop loop)
+        {
+            this.key = key;
+            this.loop = loop;
+        }
+
+        abstract void doIO() throws IOException;
+
+        void close()
+        {
+            if (isClosed)
+                return;
+            isClosed = true;
+            stream.close();
+            System.out.println("Closing "+ this);
+            try
+            {
+                channel.close();
+            } catch (IOException ioe) {}
+        }
+    }
+
+    class ChannelHandler extends ChannelEndPoint
+    {
+        final ByteBuffer buffer;
+
+        ChannelHandler(SocketChannel channel, StreamCounter stream)
+        {
+            super(channel, stream);
+            this.buffer = bufferPool != null ? bufferPool.acquire() : ByteBuffer.allocate(bufferSize);
+        }
+
+        int interestOps(){return SelectionKey.OP_READ;}
+
+        void doIO() throws IOException
+        {
+            if (buffer.position() == 0)
+                transferStart = System.nanoTime();
+            if (channel.read(buffer) == -1)
+                throw new EOFException();
+            if (buffer.hasRemaining())
+                return;
+
+            readLatency.record(System.nanoTime() - transferStart);
+            readCount.add(buffer.capacity());
+            stream.addRead(buffer.capacity());
+            buffer.clear();
+        }
+
+        void close()
+        {
+            boolean wasClosed = isClosed;
+            super.close();
+            if (! wasClosed && bufferPool != null)
+                bufferPool.release(buffer);
+        }
+    }
+
+    class ChannelClient extends ChannelEndPoint
+    {
+        final ByteBuffer buffer;
+
+        ChannelClient(SocketChannel channel, StreamCounter stream)
+        {
+            super(channel, stream);
+            this.buffer = ByteBuffer.allocate(bufferSize);
+            random.nextBytes(buffer.array());
+        }
+
+        int interestOps(){return SelectionKey.OP_WRITE;}
+
+        void doIO() throws IOException
+        {
+            if (! inTransfer && ! startTransfer())
+                return;
+            channel.write(buffer);
+            if (buffer.hasRemaining())
+                return;
+
+            writeLatency.record(System.nanoTime() - transferStart);
+            writeCount.add(buffer.capacity());
+            stream.addWrite(buffer.capacity());
+            inTransfer = false;
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Sends from the pre-filled source file with transferTo, so the payload never enters the JVM heap.
+     */
+    class TransferClient extends ChannelEndPoint
+    {
+        private long position;
+
+        TransferClient(SocketChannel channel, StreamCounter stream)
+        {
+            super(channel, stream);
+        }
+
+        int interestOps(){return SelectionKey.OP_WRITE;}
+
+        void doIO() throws IOException
+        {
+            if (! inTransfer && ! startTransfer())
+                return;
+            position += sourceChannel.transferTo(position, bufferSize - position, channel);
+            if (position < bufferSize)
+                return;
+
+            writeLatency.record(System.nanoTime() - transferStart);
+            writeCount.add(bufferSize);
+            stream.addWrite(bufferSize);
+            inTransfer = false;
+            position = 0;
+        }
+    }
+
+    /**
+     * Reads and writes the same channel at once, delegating each direction to a handler and a sender.
+     */
+    class DuplexEndPoint extends ChannelEndPoint
+    {
+        final ChannelEndPoint reader, writer;
+
+        DuplexEndPoint(ChannelEndPoint reader, ChannelEndPoint writer)
+        {
+            super(reader.channel, reader.stream);
+            this.reader = reader;
+            this.writer = writer;
+        }
+
+        int interestOps(){return SelectionKey.OP_READ | SelectionKey.OP_WRITE;}
+
+        void registered(SelectionKey key, EventLoop loop)
+        {
+            super.registered(key, loop);
+            reader.registered(key, loop);
+            writer.registered(key, loop);
+        }
+
+        void doIO() throws IOException
+        {
+            int readyOps = key.readyOps();
+            if ((readyOps & SelectionKey.OP_READ) != 0)
+                reader.doIO();
+            if ((readyOps & SelectionKey.OP_WRITE) != 0 && key.isValid())
+                writer.doIO();
+        }
+
+        void close()
+        {
+            super.close();
+            reader.close();
+            writer.close();
+        }
+    }
+
+    final Acceptor acceptor;
+    final EventLoop[] eventLoops;
+    final InetSocketAddress[] clientAddresses;
+    final ChannelEndPoint[] clients;
+    final int threadCount;
+    final boolean zeroCopy, duplex;
+    private final DirectBufferPool bufferPool;
+    private final File sourceFile;
+    private final FileChannel sourceChannel;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final CountDownLatch loopsExited;
+    private volatile boolean loopsStarted;
+
+    public NioNetworkIOTester(InetSocketAddress serverAddress, InetSocketAddress[] clientAddresses, int threadCount, int eventLoopCount, int duration, int bufferSize) throws IOException
+    {
+        this(serverAddress, clientAddresses, threadCount, eventLoopCount, duration, bufferSize, false, false);
+    }
+
+    /**
+     * @param zeroCopy if true, receive into pooled direct buffers and send with transferTo from a pre-filled file
+     * @param duplex if true, both ends of every connection read and write at once
+     */
+    public NioNetworkIOTester(InetSocketAddress serverAddress, InetSocketAddress[] clientAddresses, int threadCount, int eventLoopCount, int duration, int bufferSize, boolean zeroCopy, boolean duplex) throws IOException
+    {
+        super(duration, bufferSize);
+
+        if (eventLoopCount <= 0)
+            throw new IllegalArgumentException("Number of event-loops must be greater than zero.");
+
+        this.threadCount = threadCount;
+        this.eventLoops = new EventLoop[eventLoopCount];
+        this.loopsExited = new CountDownLatch(eventLoopCount);
+        for (int i=0; i < eventLoopCount; i++)
+            this.eventLoops[i] = new EventLoop();
+
+        if (serverAddress == null)
+            this.acceptor = null;
+        else
+            this.acceptor = new Acceptor(serverAddress);
+
+        if (clientAddresses == null)
+        {
+            this.clients = null;
+            this.clientAddresses = null;
+        }
+        else
+        {
+            this.clientAddresses = clientAddresses;
+            this.clients = new ChannelEndPoint[clientAddresses.length * threadCount];
+        }
+
+        this.zeroCopy = zeroCopy;
+        this.duplex = duplex;
+        if (! zeroCopy)
+        {
+            this.bufferPool = null;
+            this.sourceFile = null;
+            this.sourceChannel = null;
+            return;
+        }
+
+        this.bufferPool = new DirectBufferPool(bufferSize);
+        if (clients == null && ! duplex)
+        {
+            this.sourceFile = null;
+            this.sourceChannel = null;
+            return;
+        }
+
+        //
+        // The senders all transfer the same pre-filled window of the source file
+        //
+        this.sourceFile = File.createTempFile("iotester", ".src");
+        this.sourceFile.deleteOnExit();
+        byte[] bytes = new byte[bufferSize];
+        random.nextBytes(bytes);
+        FileOutputStream out = new FileOutputStream(sourceFile);
+        try
+        {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        this.sourceChannel = new RandomAccessFile(sourceFile, "r").getChannel();
+    }
+
+    ChannelEndPoint newSender(SocketChannel channel, StreamCounter stream)
+    {
+        return zeroCopy ? new TransferClient(channel, stream) : new ChannelClient(channel, stream);
+    }
+
+    EventLoop nextEventLoop()
+    {
+        int index = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length;
+        return eventLoops[index];
+    }
+
+    void initClients()
+    {
+        for (int iClient=0; iClient < clientAddresses.length; iClient++)
+        {
+            InetSocketAddress address = clientAddresses[iClient];
+            if (address == null)
+                continue;
+            for (int iThread=0;iThread < threadCount; iThread++)
+            {
+                SocketChannel channel = null;
+                try
+                {
+                    channel = SocketChannel.open();
+                    setSocketParams(channel);
+                    channel.connect(address);
+
+                    StreamCounter stream = newStream(channel.socket());
+                    ChannelEndPoint client = newSender(channel, stream);
+                    if (duplex)
+                        client = new DuplexEndPoint(new ChannelHandler(channel, stream), client);
+                    clients[iClient * threadCount + iThread] = client;
+                    nextEventLoop().register(client);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    try
+                    {
+                        if (channel != null)
+                            channel.close();
+                    } catch (IOException ioe) {}
+                }
+            }
+            System.out.println("Started "+ threadCount +" clients to server-address "+ address);
+        }
+    }
+
+    public void init()
+    {
+        System.out.println("Starting "+ eventLoops.length +" event-loops.");
+        loopsStarted = true;
+        for (EventLoop loop : eventLoops)
+            new Thread(loop).start();
+
+        if (acceptor != null)
+        {
+            System.out.println("Starting server on network address "+ acceptor.address);
+            new Thread(acceptor).start();
+        }
+        if (clients != null)
+        {
+            System.out.println("Starting clients.");
+            initClients();
+        }
+    }
+
+    public void setSocketParams(SocketChannel channel) throws IOException
+    {
+        Socket s = channel.socket();
+        s.setReceiveBufferSize(bufferSize);
+        s.setSendBufferSize(bufferSize);
+        s.setTcpNoDelay(false);
+    }
+
+    public synchronized void close()
+    {
+        super.close();
+        if (acceptor != null)
+            acceptor.close();
+        for (EventLoop loop : eventLoops)
+            loop.selector.wakeup();
+
+        if (sourceChannel != null)
+        {
+            //
+            // Senders may still be inside transferTo until their event-loop has seen the close
+            //
+            try
+            {
+                if (loopsStarted)
+                    loopsExited.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {}
+            try
+            {
+                sourceChannel.close();
+            } catch (IOException ioe) {}
+            sourceFile.delete();
+        }
+
+        System.out.println("Ran for "+ (duration / 1000) +" seconds, exiting.");
+    }
+}
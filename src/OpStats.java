@@ -0,0 +1,119 @@
+package im.boddy.iotester;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Throughput and latency of one type of operation, eg. 4K random reads of a mixed disk workload.
+ */
+public class OpStats
+{
+    /**
+     * Thread safe: operations are recorded lock-free by I/O threads and sampled by the tick thread.
+     */
+    private final String op;
+    private final LatencyHistogram latency;
+    private final Histogram rateHistogram;
+    private final LongAdder countDelta = new LongAdder(), bytesDelta = new LongAdder();
+    private long totalCount, totalBytes;
+    private float sampledMillis;
+
+    public OpStats(String op)
+    {
+        this(op, new LatencyHistogram(op +" latency"), IOTester.newRateHistogram(op), 0, 0, 0);
+    }
+
+    private OpStats(String op, LatencyHistogram latency, Histogram rateHistogram, long totalCount, long totalBytes, float sampledMillis)
+    {
+        this.op = op;
+        this.latency = latency;
+        this.rateHistogram = rateHistogram;
+        this.totalCount = totalCount;
+        this.totalBytes = totalBytes;
+        this.sampledMillis = sampledMillis;
+    }
+
+    /**
+     * @return independent statistics with the sampled totals and the histograms of these
+     */
+    public synchronized OpStats copy()
+    {
+        return new OpStats(op, latency.copy(), rateHistogram.copy(), totalCount, totalBytes, sampledMillis);
+    }
+
+    /**
+     * Adds the same type of operation recorded by another tester, which was sampled over the same period.
+     */
+    public void merge(OpStats other)
+    {
+        //
+        // Copied first so that the two locks are never held together
+        //
+        OpStats snapshot = other.copy();
+        latency.merge(snapshot.latency);
+        rateHistogram.merge(snapshot.rateHistogram);
+
+        synchronized (this)
+        {
+            totalCount += snapshot.totalCount;
+            totalBytes += snapshot.totalBytes;
+            sampledMillis = Math.max(sampledMillis, snapshot.sampledMillis);
+        }
+    }
+
+    public void record(long nanos, long bytes)
+    {
+        latency.record(nanos);
+        countDelta.increment();
+        bytesDelta.add(bytes);
+    }
+
+    synchronized void sample(float deltaTime)
+    {
+        long deltaBytes = bytesDelta.sumThenReset();
+        totalCount += countDelta.sumThenReset();
+        totalBytes += deltaBytes;
+        sampledMillis += deltaTime;
+        rateHistogram.add(IOTester.toMBperSec(deltaBytes, deltaTime));
+    }
+
+    /**
+     * Writes the sampled totals and the histograms, from which readFrom() restores equal statistics.
+     */
+    public void writeTo(DataOutput out) throws IOException
+    {
+        OpStats snapshot = copy();
+        out.writeUTF(snapshot.op);
+        snapshot.latency.writeTo(out);
+        snapshot.rateHistogram.writeTo(out);
+        out.writeLong(snapshot.totalCount);
+        out.writeLong(snapshot.totalBytes);
+        out.writeFloat(snapshot.sampledMillis);
+    }
+
+    public static OpStats readFrom(DataInput in) throws IOException
+    {
+        return new OpStats(in.readUTF(), LatencyHistogram.readFrom(in), Histogram.readFrom(in), in.readLong(), in.readLong(), in.readFloat());
+    }
+
+    public String op(){return op;}
+    public LatencyHistogram latency(){return latency;}
+    public Histogram rateHistogram(){return rateHistogram;}
+    public synchronized long totalCount(){return totalCount;}
+    public synchronized long totalBytes(){return totalBytes;}
+
+    public static String tableHeader()
+    {
+        return String.format("%-40s %12s %12s %12s %12s %12s %12s %12s%n", "operation", "count", "MB", "ops/sec", "MB/sec", "p50 us", "p99 us", "max us");
+    }
+
+    /**
+     * @return one row of the per-operation table: totals, mean rates over the sampled ticks and latency percentiles
+     */
+    public synchronized String tableRow()
+    {
+        return String.format("%-40s %12d %12.1f %12.1f %12.2f %12.1f %12.1f %12.1f%n", op, totalCount, totalBytes / 1048576.,
+                sampledMillis > 0 ? totalCount * 1000 / sampledMillis : 0, IOTester.toMBperSec(totalBytes, sampledMillis),
+                LatencyHistogram.toMicros(latency.getValueAtPercentile(50)), LatencyHistogram.toMicros(latency.getValueAtPercentile(99)), LatencyHistogram.toMicros(latency.getMax()));
+    }
+}
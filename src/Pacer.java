@@ -0,0 +1,82 @@
+package im.boddy.iotester;
+
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Open-loop scheduler: operations are assigned slots on a fixed timeline,
+ * regardless of how long earlier operations took, so that latency measured
+ * from a slot's intended start includes any time spent queued behind a
+ * slow operation (ie. does not suffer from coordinated omission).
+ */
+public class Pacer
+{
+    /**
+     * Thread safe
+     */
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+    private static final long SPIN_THRESHOLD_NANOS = 50000;
+
+    private final double intervalNanos;
+    private final AtomicLong nextSlot = new AtomicLong();
+    private final AtomicLong startNanos = new AtomicLong(NOT_STARTED);
+
+    public Pacer(double opsPerSec)
+    {
+        if (opsPerSec <= 0)
+            throw new IllegalArgumentException("Target rate must be greater than zero.");
+        this.intervalNanos = 1.e9 / opsPerSec;
+    }
+
+    /**
+     * @param mbPerSec target rate in the MB/sec units reported by IOTester
+     */
+    public static Pacer forByteRate(double mbPerSec, int bytesPerOp)
+    {
+        return new Pacer(mbPerSec * 1024 * 1000 / bytesPerOp);
+    }
+
+    public double opsPerSec(){return 1.e9 / intervalNanos;}
+
+    /**
+     * Claims the next slot without waiting for it. The timeline starts with the first claimed slot.
+     *
+     * @return the intended start of the claimed slot, in System.nanoTime() units
+     */
+    public long reserve()
+    {
+        long start = startNanos.get();
+        if (start == NOT_STARTED)
+        {
+            startNanos.compareAndSet(NOT_STARTED, System.nanoTime());
+            start = startNanos.get();
+        }
+
+        long slot = nextSlot.getAndIncrement();
+        return start + (long) (slot * intervalNanos);
+    }
+
+    /**
+     * Claims the next slot and waits until it is due.
+     *
+     * @return the intended start of the claimed slot, from which the operation's latency should be measured
+     */
+    public long acquire()
+    {
+        long intended = reserve();
+        awaitUntil(intended);
+        return intended;
+    }
+
+    public static void awaitUntil(long nanoTime)
+    {
+        long remaining;
+        while ((remaining = nanoTime - System.nanoTime()) > 0)
+        {
+            if (remaining > SPIN_THRESHOLD_NANOS)
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+            else
+                Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package im.boddy.iotester;
+
+/**
+ * Throughput of all connections to or from one peer host.
+ */
+public class PeerStats
+{
+    /**
+     * Thread safe
+     */
+    private final String peer;
+    private final Histogram readHistogram, writeHistogram;
+    private long totalRead, totalWrite;
+    private float sampledMillis;
+    private int connections, finishedConnections;
+    private float slowestConnectionRate = Float.NaN;
+
+    public PeerStats(String peer)
+    {
+        this(peer, IOTester.newRateHistogram("Read from "+ peer), IOTester.newRateHistogram("Write to "+ peer));
+    }
+
+    private PeerStats(String peer, Histogram readHistogram, Histogram writeHistogram)
+    {
+        this.peer = peer;
+        this.readHistogram = readHistogram;
+        this.writeHistogram = writeHistogram;
+    }
+
+    /**
+     * @return independent statistics with the same totals and histograms
+     */
+    public synchronized PeerStats copy()
+    {
+        PeerStats copy = new PeerStats(peer, readHistogram.copy(), writeHistogram.copy());
+        copy.totalRead = totalRead;
+        copy.totalWrite = totalWrite;
+        copy.sampledMillis = sampledMillis;
+        copy.connections = connections;
+        copy.finishedConnections = finishedConnections;
+        copy.slowestConnectionRate = slowestConnectionRate;
+        return copy;
+    }
+
+    /**
+     * Adds the connections to the same peer seen by another tester, which was sampled over the same period.
+     */
+    public void merge(PeerStats other)
+    {
+        //
+        // Copied first so that the two locks are never held together
+        //
+        PeerStats snapshot = other.copy();
+        readHistogram.merge(snapshot.readHistogram);
+        writeHistogram.merge(snapshot.writeHistogram);
+
+        synchronized (this)
+        {
+            totalRead += snapshot.totalRead;
+            totalWrite += snapshot.totalWrite;
+            sampledMillis = Math.max(sampledMillis, snapshot.sampledMillis);
+            connections += snapshot.connections;
+            finishedConnections += snapshot.finishedConnections;
+            if (Float.isNaN(slowestConnectionRate) || snapshot.slowestConnectionRate < slowestConnectionRate)
+                slowestConnectionRate = snapshot.slowestConnectionRate;
+        }
+    }
+
+    synchronized void connectionOpened()
+    {
+        connections++;
+    }
+
+    synchronized void connectionFinished(float meanRate)
+    {
+        finishedConnections++;
+        if (Float.isNaN(slowestConnectionRate) || meanRate < slowestConnectionRate)
+            slowestConnectionRate = meanRate;
+    }
+
+    synchronized void sample(long deltaRead, long deltaWrite, float deltaTime)
+    {
+        totalRead += deltaRead;
+        totalWrite += deltaWrite;
+        sampledMillis += deltaTime;
+        readHistogram.add(IOTester.toMBperSec(deltaRead, deltaTime));
+        writeHistogram.add(IOTester.toMBperSec(deltaWrite, deltaTime));
+    }
+
+    public String peer(){return peer;}
+    public Histogram readHistogram(){return readHistogram;}
+    public Histogram writeHistogram(){return writeHistogram;}
+    public synchronized long totalRead(){return totalRead;}
+    public synchronized long totalWrite(){return totalWrite;}
+    public synchronized int connections(){return connections;}
+    public synchronized float slowestConnectionRate(){return slowestConnectionRate;}
+
+    public static String tableHeader()
+    {
+        return String.format("%-40s %11s %12s %12s %15s %15s %15s%n", "peer", "connections", "read MB", "written MB", "read MB/sec", "write MB/sec", "slowest MB/sec");
+    }
+
+    /**
+     * @return one row of the per-peer table: totals, mean rates while the peer had connections and the mean rate of its slowest connection
+     */
+    public synchronized String tableRow()
+    {
+        return String.format("%-40s %11d %12.1f %12.1f %15.2f %15.2f %15.2f%n", peer, connections, totalRead / 1048576., totalWrite / 1048576.,
+                IOTester.toMBperSec(totalRead, sampledMillis), IOTester.toMBperSec(totalWrite, sampledMillis), slowestConnectionRate);
+    }
+}
@@ -0,0 +1,56 @@
+package im.boddy.iotester;
+
+import java.io.*;
+
+/**
+ * Throughput of one node during one phase of a traffic pattern.
+ */
+public class PhaseStats
+{
+    /**
+     * Immutable
+     */
+    private final int phase;
+    private final String description;
+    private final long millis, totalRead, totalWrite;
+
+    public PhaseStats(int phase, String description, long millis, long totalRead, long totalWrite)
+    {
+        this.phase = phase;
+        this.description = description;
+        this.millis = millis;
+        this.totalRead = totalRead;
+        this.totalWrite = totalWrite;
+    }
+
+    public int phase(){return phase;}
+    public String description(){return description;}
+    public long millis(){return millis;}
+    public long totalRead(){return totalRead;}
+    public long totalWrite(){return totalWrite;}
+
+    public void writeTo(DataOutput out) throws IOException
+    {
+        out.writeInt(phase);
+        out.writeUTF(description);
+        out.writeLong(millis);
+        out.writeLong(totalRead);
+        out.writeLong(totalWrite);
+    }
+
+    public static PhaseStats readFrom(DataInput in) throws IOException
+    {
+        return new PhaseStats(in.readInt(), in.readUTF(), in.readLong(), in.readLong(), in.readLong());
+    }
+
+    public static String tableHeader()
+    {
+        return String.format("%6s %-40s %10s %12s %12s %15s %15s%n", "phase", "pattern", "seconds", "read MB", "written MB", "read MB/sec", "write MB/sec");
+    }
+
+    public String tableRow()
+    {
+        return String.format("%6d %-40s %10.1f %12.1f %12.1f %15.2f %15.2f%n", phase, description, millis / 1000., totalRead / 1048576., totalWrite / 1048576.,
+                IOTester.toMBperSec(totalRead, millis), IOTester.toMBperSec(totalWrite, millis));
+    }
+}
@@ -0,0 +1,108 @@
+package im.boddy.iotester;
+
+//
+// The JVM is free to reorder the fields of one class, but lays out a superclass's fields before its subclass's,
+// so each counter and its padding is declared in its own class
+//
+abstract class StreamCounterPadding0
+{
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class StreamCounterRead extends StreamCounterPadding0
+{
+    volatile long readCount;
+}
+
+abstract class StreamCounterPadding1 extends StreamCounterRead
+{
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class StreamCounterWrite extends StreamCounterPadding1
+{
+    volatile long writeCount;
+}
+
+abstract class StreamCounterPadding2 extends StreamCounterWrite
+{
+    long p20, p21, p22, p23, p24, p25, p26, p27;
+}
+
+/**
+ * Byte counters of a single connection. Each direction has exactly one
+ * writing thread, so updates are plain volatile writes rather than atomic
+ * read-modify-writes. The two counters are padded from each other, since in
+ * duplex and echo modes different threads write them, and from neighbouring
+ * objects, so that no two writers share a cache-line. The tick thread derives
+ * per-tick deltas without ever resetting them.
+ */
+public class StreamCounter extends StreamCounterPadding2
+{
+    private final String peer, connection;
+    private final long openedNanos;
+    private volatile long closedNanos;
+    private volatile boolean isClosed;
+
+    //
+    // Only touched by the tick thread
+    //
+    private long lastRead, lastWrite;
+
+    public StreamCounter(String peer)
+    {
+        this(peer, peer);
+    }
+
+    /**
+     * @param connection identifies the connection among all of a tester's connections, eg. its local port and remote address
+     */
+    public StreamCounter(String peer, String connection)
+    {
+        this.peer = peer;
+        this.connection = connection;
+        this.openedNanos = System.nanoTime();
+    }
+
+    public void addRead(long n){readCount += n;}
+    public void addWrite(long n){writeCount += n;}
+
+    public String peer(){return peer;}
+    public String connection(){return connection;}
+    public long readCount(){return readCount;}
+    public long writeCount(){return writeCount;}
+    public boolean isClosed(){return isClosed;}
+
+    public void close()
+    {
+        if (isClosed)
+            return;
+        closedNanos = System.nanoTime();
+        isClosed = true;
+    }
+
+    long readDelta()
+    {
+        long count = readCount;
+        long delta = count - lastRead;
+        lastRead = count;
+        return delta;
+    }
+
+    long writeDelta()
+    {
+        long count = writeCount;
+        long delta = count - lastWrite;
+        lastWrite = count;
+        return delta;
+    }
+
+    /**
+     * @return the mean read plus write rate over the connection's lifetime so far, in MB/sec
+     */
+    public float meanRate()
+    {
+        long end = isClosed ? closedNanos : System.nanoTime();
+        return IOTester.toMBperSec(readCount + writeCount, (end - openedNanos) / 1.e6f);
+    }
+}
@@ -0,0 +1,171 @@
+package im.boddy.iotester;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Appends one record per tester per tick to a CSV or JSON-lines file. Tick threads
+ * only enqueue their samples; formatting and writing happen on a background thread,
+ * which flushes at least once a second so that little is lost if the process dies.
+ */
+public class TimeSeriesWriter implements Runnable
+{
+    /**
+     * Thread safe
+     */
+    public enum Format {CSV, JSONL}
+
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    private static final String[] FIELDS = {"time_ms", "tester", "read_mb_s", "write_mb_s", "transactions_s",
+        "read_p50_us", "read_p99_us", "write_p50_us", "write_p99_us", "rtt_p50_us", "rtt_p99_us"};
+
+    /**
+     * One tick of one tester, latencies in microseconds over that tick
+     */
+    static class Sample
+    {
+        final long time;
+        final String tester;
+        final float readRate, writeRate, transactionRate;
+        final double[] latencies;
+
+        Sample(long time, String tester, float readRate, float writeRate, float transactionRate, double[] latencies)
+        {
+            this.time = time;
+            this.tester = tester;
+            this.readRate = readRate;
+            this.writeRate = writeRate;
+            this.transactionRate = transactionRate;
+            this.latencies = latencies;
+        }
+    }
+
+    private final BlockingQueue<Sample> queue = new ArrayBlockingQueue<Sample>(QUEUE_CAPACITY);
+    private final Writer writer;
+    private final Format format;
+    private final Thread thread;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean isClosed;
+
+    public TimeSeriesWriter(File file, Format format) throws IOException
+    {
+        this.writer = new BufferedWriter(new FileWriter(file, true));
+        this.format = format;
+        if (format == Format.CSV && file.length() == 0)
+            writer.write(String.join(",", FIELDS) +"\n");
+
+        this.thread = new Thread(this, "time-series writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the format named by -timeSeriesFormat, or else implied by the file extension
+     */
+    public static Format formatFromString(String format, String fileName)
+    {
+        if (format == null)
+            return fileName.endsWith(".jsonl") || fileName.endsWith(".json") ? Format.JSONL : Format.CSV;
+        if ("csv".equalsIgnoreCase(format))
+            return Format.CSV;
+        if ("jsonl".equalsIgnoreCase(format))
+            return Format.JSONL;
+        throw new IllegalArgumentException("Unknown time-series format "+ format +", expected csv or jsonl.");
+    }
+
+    /**
+     * Never blocks the tick thread: if the writer has fallen behind, the sample is dropped and counted.
+     */
+    public void append(Sample sample)
+    {
+        if (isClosed || ! queue.offer(sample))
+            dropped.incrementAndGet();
+    }
+
+    public long droppedCount(){return dropped.get();}
+
+    public void run()
+    {
+        long lastFlush = System.currentTimeMillis();
+        try
+        {
+            while (! isClosed || ! queue.isEmpty())
+            {
+                Sample sample = null;
+                try
+                {
+                    sample = queue.poll(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ie){}
+
+                if (sample != null)
+                    writer.write(format(sample));
+
+                long time = System.currentTimeMillis();
+                if (queue.isEmpty() && time - lastFlush >= FLUSH_INTERVAL_MS)
+                {
+                    writer.flush();
+                    lastFlush = time;
+                }
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        } finally {
+            try
+            {
+                writer.close();
+            } catch (IOException ioe) {}
+        }
+    }
+
+    private String format(Sample sample)
+    {
+        Object[] values = new Object[FIELDS.length];
+        values[0] = sample.time;
+        values[1] = sample.tester;
+        values[2] = sample.readRate;
+        values[3] = sample.writeRate;
+        values[4] = sample.transactionRate;
+        for (int i=0; i < sample.latencies.length; i++)
+            values[5 + i] = sample.latencies[i];
+
+        StringBuilder sb = new StringBuilder();
+        if (format == Format.JSONL)
+            sb.append("{");
+        for (int i=0; i < FIELDS.length; i++)
+        {
+            if (i > 0)
+                sb.append(",");
+            if (format == Format.CSV)
+            {
+                sb.append(values[i]);
+                continue;
+            }
+            sb.append("\""+ FIELDS[i] +"\":");
+            sb.append(values[i] instanceof String ? "\""+ values[i] +"\"" : values[i]);
+        }
+        if (format == Format.JSONL)
+            sb.append("}");
+        sb.append("\n");
+        return sb.toString();
+    }
+
+    /**
+     * Writes out every queued sample, then closes the file.
+     */
+    public void close()
+    {
+        isClosed = true;
+        thread.interrupt();
+        while (true)
+        {
+            try
+            {
+                thread.join();
+                break;
+            } catch (InterruptedException ie){}
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package im.boddy.iotester;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * Which peers each node sends to, computed from one list of peer server addresses
+ * that every node shares, so that each node only needs to know its own index.
+ */
+public class TrafficPattern
+{
+    /**
+     * ALL_TO_ALL: every node sends to every other node.
+     * RING: node i sends to node i+1.
+     * INCAST: every other node sends to the target node.
+     * OUTCAST: the target node sends to every other node.
+     * PERMUTATION: every node sends to exactly one other node and receives from exactly one, reshuffled every phase.
+     */
+    public enum Kind {ALL_TO_ALL, RING, INCAST, OUTCAST, PERMUTATION}
+
+    /**
+     * Thread safe
+     */
+    private final Kind kind;
+    private final InetSocketAddress[] peers;
+    private final int target;
+    private final long seed;
+
+    public TrafficPattern(Kind kind, InetSocketAddress[] peers, int target, long seed)
+    {
+        if (peers.length < 2)
+            throw new IllegalArgumentException("Traffic patterns require at least two peers.");
+        if (target < 0 || target >= peers.length)
+            throw new IllegalArgumentException("Target must be the index of one of the "+ peers.length +" peers.");
+
+        this.kind = kind;
+        this.peers = peers;
+        this.target = target;
+        this.seed = seed;
+    }
+
+    public static Kind kindFromString(String s)
+    {
+        for (Kind kind : Kind.values())
+            if (kind.name().replace('_', '-').equalsIgnoreCase(s))
+                return kind;
+        throw new IllegalArgumentException("Unknown traffic pattern "+ s +", expected all-to-all, ring, incast, outcast or permutation.");
+    }
+
+    public Kind kind(){return kind;}
+    public int peerCount(){return peers.length;}
+
+    public InetSocketAddress peer(int index)
+    {
+        if (index < 0 || index >= peers.length)
+            throw new IllegalArgumentException("Peer index must be between 0 and "+ (peers.length-1));
+        return peers[index];
+    }
+
+    /**
+     * @return the server addresses node self sends to during the given phase, empty if it only receives
+     */
+    public InetSocketAddress[] destinations(int self, int phase)
+    {
+        peer(self);
+        List<InetSocketAddress> destinations = new ArrayList<InetSocketAddress>();
+        switch (kind)
+        {
+            case ALL_TO_ALL:
+                for (int i=0; i < peers.length; i++)
+                    if (i != self)
+                        destinations.add(peers[i]);
+                break;
+            case RING:
+                destinations.add(peers[(self + 1) % peers.length]);
+                break;
+            case INCAST:
+                if (self != target)
+                    destinations.add(peers[target]);
+                break;
+            case OUTCAST:
+                if (self == target)
+                    for (int i=0; i < peers.length; i++)
+                        if (i != self)
+                            destinations.add(peers[i]);
+                break;
+            case PERMUTATION:
+                destinations.add(peers[permutation(phase)[self]]);
+                break;
+        }
+        return destinations.toArray(new InetSocketAddress[destinations.size()]);
+    }
+
+    /**
+     * @return a permutation of the peer indices without fixed points, the same on every node for a given seed and phase
+     */
+    int[] permutation(int phase)
+    {
+        Random random = new Random(seed * 31 + phase);
+        List<Integer> indices = new ArrayList<Integer>();
+        for (int i=0; i < peers.length; i++)
+            indices.add(i);
+
+        while (true)
+        {
+            Collections.shuffle(indices, random);
+            boolean fixedPoint = false;
+            for (int i=0; i < peers.length && ! fixedPoint; i++)
+                fixedPoint = indices.get(i) == i;
+            if (fixedPoint)
+                continue;
+
+            int[] permutation = new int[peers.length];
+            for (int i=0; i < peers.length; i++)
+                permutation[i] = indices.get(i);
+            return permutation;
+        }
+    }
+
+    /**
+     * @return a short description of what node self does during the given phase
+     */
+    public String describe(int self, int phase)
+    {
+        InetSocketAddress[] destinations = destinations(self, phase);
+        String name = kind.name().toLowerCase().replace('_', '-');
+        if (destinations.length == 0)
+            return name +" (receiving)";
+        if (destinations.length == 1)
+            return name +" -> "+ destinations[0].getHostString() +":"+ destinations[0].getPort();
+        return name +" -> "+ destinations.length +" peers";
+    }
+}
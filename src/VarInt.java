@@ -0,0 +1,36 @@
+package im.boddy.iotester;
+
+import java.io.*;
+
+/**
+ * Unsigned LEB128 encoding of non-negative longs: 7 bits per byte, low bits first,
+ * the top bit of each byte set if more follow, so that small values take one byte.
+ */
+public class VarInt
+{
+    public static void write(DataOutput out, long value) throws IOException
+    {
+        if (value < 0)
+            throw new IllegalArgumentException("Cannot encode negative value "+ value);
+
+        while ((value & ~0x7FL) != 0)
+        {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static long read(DataInput in) throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed variable-length integer.");
+    }
+}
@@ -10,6 +10,12 @@ public class AllTests
     {
         testClass(HistogramTests.class);
         testClass(NetworkIOTests.class);
+        testClass(DiskIOTests.class);
+        testClass(LatencyHistogramTests.class);
+        testClass(ConcurrentHistogramTests.class);
+        testClass(PacerTests.class);
+        testClass(TrafficPatternTests.class);
+        testClass(DiskWorkloadTests.class);
     }
 
     private static void testClass(Class c)
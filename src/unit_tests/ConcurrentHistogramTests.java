@@ -0,0 +1,87 @@
+package im.boddy.iotester.unit_tests;
+import im.boddy.iotester.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+
+public class ConcurrentHistogramTests
+{
+    private static final Random random = new Random(666);
+    private static final float DELTA_TOLERANCE = 1.e-4f;
+
+    @Test public void concurrentAddTest() throws InterruptedException
+    {
+        final ConcurrentHistogram histo = new ConcurrentHistogram(100, 0, 100, null, null, null);
+        final int nThreads = 8, nVals = 100000;
+
+        Thread[] threads = new Thread[nThreads];
+        for (int i=0; i < nThreads; i++)
+        {
+            threads[i] = new Thread(new Runnable(){
+                public void run()
+                {
+                    for (int j=0; j < nVals; j++)
+                        histo.add(j % 100);
+                }});
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals("no lost updates", (long) nThreads * nVals, histo.getCount());
+        assertEquals("per bin counts", (long) nThreads * nVals / 100, histo.binYval(42));
+    }
+
+    @Test public void exactCountTest()
+    {
+        ConcurrentHistogram histo = new ConcurrentHistogram(10, 0, 10, null, null, null);
+        histo.add(5, 1L << 40);
+        histo.add(5);
+        assertEquals("long counts do not lose precision", (1L << 40) + 1, histo.binYval(5));
+    }
+
+    @Test public void statisticsMatchHistogramTest()
+    {
+        int nBins = Math.max(random.nextInt(1000),10);
+        float xMin = random.nextFloat();
+        float xMax = xMin + random.nextFloat() * 10;
+        Histogram histo = new Histogram(nBins, xMin, xMax, null, null, null);
+        ConcurrentHistogram concurrentHisto = new ConcurrentHistogram(nBins, xMin, xMax, null, null, null);
+
+        for (int i=0; i < 1000; i++)
+        {
+            float val = xMin + random.nextFloat() * (xMax - xMin);
+            histo.add(val);
+            concurrentHisto.add(val);
+        }
+
+        assertEquals("average", histo.getAverage(), concurrentHisto.getAverage(), DELTA_TOLERANCE);
+        assertEquals("variance", histo.getVariance(), concurrentHisto.getVariance(), DELTA_TOLERANCE * histo.getVariance());
+    }
+
+    @Test public void snapshotAndMergeTest()
+    {
+        ConcurrentHistogram a = new ConcurrentHistogram(10, 0, 10, null, null, null);
+        ConcurrentHistogram b = new ConcurrentHistogram(10, 0, 10, null, null, null);
+        a.add(1);
+        a.add(-1);
+        b.add(1);
+        b.add(20);
+
+        ConcurrentHistogram snapshot = a.snapshot();
+        a.merge(b);
+
+        assertEquals("snapshot is unaffected by later updates", 1, snapshot.binYval(1));
+        assertEquals("merged bin", 2, a.binYval(1));
+        assertEquals("merged underflow", 1, a.getUnderflow());
+        assertEquals("merged overflow", 1, a.getOverflow());
+
+        try
+        {
+            a.merge(new ConcurrentHistogram(20, 0, 10, null, null, null));
+            fail();
+        } catch (IllegalArgumentException iae) {}
+    }
+}
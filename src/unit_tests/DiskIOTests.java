@@ -0,0 +1,383 @@
+package im.boddy.iotester.unit_tests;
+
+import im.boddy.iotester.*;
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+import java.lang.management.*;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+
+public class DiskIOTests
+{
+    private static final int THREAD_COUNT = 4;
+    private static final int DURATION_MS = 2000;
+    private static final int BUFFER_LENGTH = 4096;
+    private static final long MAX_FILE_SIZE = 16*1024*1024;
+
+    private File file;
+
+    @Before public void createFile() throws IOException
+    {
+        file = File.createTempFile("iotester", ".dat");
+    }
+
+    @After public void deleteFile()
+    {
+        file.delete();
+    }
+
+    private static void runToCompletion(IOTester tester)
+    {
+        new Thread(tester).start();
+
+        while(! tester.isClosed())
+            try
+            {
+                Thread.sleep(100);
+            } catch (InterruptedException ie){}
+    }
+
+    @Test public void multiThreadedWriteTest() throws IOException
+    {
+        DiskIOTester tester = new DiskIOTester(DURATION_MS, BUFFER_LENGTH, file.getPath(), false, MAX_FILE_SIZE, true, THREAD_COUNT, false, 0, false, 0);
+        runToCompletion(tester);
+
+        assertTrue("bytes were written", tester.totalWriteCount() > 0);
+        assertEquals("nothing was read", 0, tester.totalReadCount());
+        assertTrue("file stays within max size", file.length() <= MAX_FILE_SIZE);
+    }
+
+    @Test public void sharedRegionReadTest() throws IOException
+    {
+        RandomAccessFile rFile = new RandomAccessFile(file, "rw");
+        rFile.setLength(MAX_FILE_SIZE);
+        rFile.close();
+
+        DiskIOTester tester = new DiskIOTester(DURATION_MS, BUFFER_LENGTH, file.getPath(), true, MAX_FILE_SIZE, false, THREAD_COUNT, true, 0, false, 0);
+        runToCompletion(tester);
+
+        assertTrue("bytes were read", tester.totalReadCount() > 0);
+        assertEquals("nothing was written", 0, tester.totalWriteCount());
+    }
+
+    @Test public void asyncReadTest() throws IOException
+    {
+        RandomAccessFile rFile = new RandomAccessFile(file, "rw");
+        rFile.setLength(MAX_FILE_SIZE);
+        rFile.close();
+
+        DiskIOTester tester = new DiskIOTester(DURATION_MS, BUFFER_LENGTH, file.getPath(), true, MAX_FILE_SIZE, true, 1, true, 32, false, 0);
+        runToCompletion(tester);
+
+        assertTrue("bytes were read", tester.totalReadCount() > 0);
+        assertEquals("nothing was written", 0, tester.totalWriteCount());
+    }
+
+    @Test public void mappedWriteTest() throws IOException
+    {
+        DiskIOTester tester = new DiskIOTester(DURATION_MS, BUFFER_LENGTH, file.getPath(), false, MAX_FILE_SIZE, true, THREAD_COUNT, false, 0, true, 64);
+        runToCompletion(tester);
+
+        assertTrue("bytes were written", tester.totalWriteCount() > 0);
+        assertEquals("mapped file covers max size", MAX_FILE_SIZE, file.length());
+    }
+
+    @Test public void pacedWriteTest() throws IOException
+    {
+        int targetOps = 500;
+        DiskIOTester tester = new DiskIOTester(DURATION_MS, BUFFER_LENGTH, file.getPath(), false, MAX_FILE_SIZE, true, THREAD_COUNT, false, 0, false, 0);
+        tester.setPacer(new Pacer(targetOps));
+        runToCompletion(tester);
+
+        float ops = (float) tester.totalWriteCount() / BUFFER_LENGTH;
+        float expectedOps = targetOps * DURATION_MS / 1000.f;
+        assertEquals("writes follow the target rate", expectedOps, ops, 0.2f * expectedOps);
+    }
+
+    @Test public void regionTooSmallTest() throws IOException
+    {
+        try
+        {
+            new DiskIOTester(DURATION_MS, BUFFER_LENGTH, file.getPath(), false, BUFFER_LENGTH * THREAD_COUNT, true, THREAD_COUNT, false, 0, false, 0);
+            fail();
+        } catch (IllegalArgumentException iae) {}
+    }
+
+    @Test public void timeSeriesTest() throws IOException
+    {
+        File series = File.createTempFile("iotester", ".jsonl");
+        try
+        {
+            IOTester.configure(IOTester.argMap(new String[]{"-timeSeries", series.getPath(), "-tick", "100"}));
+            DiskIOTester tester = new DiskIOTester(DURATION_MS, BUFFER_LENGTH, file.getPath(), false, MAX_FILE_SIZE, true, THREAD_COUNT, false, 0, false, 0);
+            runToCompletion(tester);
+            IOTester.closeTimeSeries();
+
+            List<String> lines = java.nio.file.Files.readAllLines(series.toPath());
+            assertTrue("a record per tick", lines.size() >= DURATION_MS / 100 - 2);
+            for (String line : lines)
+                assertTrue("JSON lines", line.startsWith("{\"time_ms\":") && line.endsWith("}") && line.contains("\"tester\":\"DiskIOTester\""));
+            assertTrue("tick write latencies", lines.get(lines.size() / 2).matches(".*\"write_p99_us\":[1-9].*"));
+        } finally {
+            series.delete();
+        }
+    }
+
+    @Test public void metricsTest() throws Exception
+    {
+        MetricsServer metrics = new MetricsServer(0);
+        metrics.start();
+        try
+        {
+            DiskIOTester tester = new DiskIOTester(DURATION_MS, BUFFER_LENGTH, file.getPath(), false, MAX_FILE_SIZE, true, THREAD_COUNT, false, 0, false, 0);
+            new Thread(tester).start();
+            Thread.sleep(DURATION_MS / 2);
+
+            Object written = ManagementFactory.getPlatformMBeanServer().getAttribute(MetricsServer.objectName(tester), "TotalWrite");
+            assertTrue("JMX totals", (Long) written > 0);
+
+            StringBuilder sb = new StringBuilder();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new URL("http://localhost:"+ metrics.port() +"/metrics").openStream(), "UTF-8"));
+            for (String line; (line = reader.readLine()) != null; )
+                sb.append(line).append("\n");
+            reader.close();
+            assertTrue("Prometheus totals", sb.toString().contains("iotester_written_bytes_total{tester=\""+ tester.name() +"\"}"));
+            assertTrue("Prometheus latencies", sb.toString().contains("iotester_latency_seconds_count{tester=\""+ tester.name() +"\",op=\"write\"}"));
+
+            while(! tester.isClosed())
+                Thread.sleep(100);
+            Thread.sleep(200);
+            assertFalse("unregistered once finished", ManagementFactory.getPlatformMBeanServer().isRegistered(MetricsServer.objectName(tester)));
+        } finally {
+            metrics.close();
+        }
+    }
+
+    @Test public void directWriteTest() throws IOException
+    {
+        DiskIOTester tester = new DiskIOTester(DURATION_MS, BUFFER_LENGTH, file.getPath(), false, MAX_FILE_SIZE + 1000, true, THREAD_COUNT, false, 0, false, 0);
+        try
+        {
+            tester.setDirect(true);
+        } catch (IOException ioe) {
+            Assume.assumeNoException("file-system does not support O_DIRECT", ioe);
+        }
+        assertEquals("direct I/O is aligned to the block size", 0, BUFFER_LENGTH % tester.alignment());
+        runToCompletion(tester);
+
+        assertTrue("bytes were written", tester.totalWriteCount() > 0);
+        assertTrue("file stays within max size", file.length() <= MAX_FILE_SIZE);
+        assertEquals("every write is block-aligned", 0, file.length() % tester.alignment());
+    }
+
+    @Test public void directRequiresAlignedOperationsTest() throws IOException
+    {
+        DiskIOTester tester = new DiskIOTester(DURATION_MS, BUFFER_LENGTH + 1, file.getPath(), false, MAX_FILE_SIZE, true, THREAD_COUNT, false, 0, false, 0);
+        try
+        {
+            tester.setDirect(true);
+            fail("unaligned operation size was accepted");
+        } catch (IllegalArgumentException expected) {}
+        assertFalse(tester.isDirect());
+    }
+
+    @Test public void mixedWorkloadTest() throws IOException
+    {
+        DiskIOTester tester = new DiskIOTester(DURATION_MS, BUFFER_LENGTH, file.getPath(), false, MAX_FILE_SIZE, true, THREAD_COUNT, false, 0, false, 0);
+        tester.setWorkload(DiskWorkload.parse(70, "4k:60,16k:30,64k:10", true, false, "zipf:0.99"));
+        runToCompletion(tester);
+
+        assertTrue("bytes were read", tester.totalReadCount() > 0);
+        assertTrue("bytes were written", tester.totalWriteCount() > 0);
+        assertEquals("file is extended for reads", MAX_FILE_SIZE, file.length());
+        byte[] last = new byte[BUFFER_LENGTH];
+        RandomAccessFile rFile = new RandomAccessFile(file, "r");
+        try
+        {
+            rFile.seek(MAX_FILE_SIZE - BUFFER_LENGTH);
+            rFile.readFully(last);
+        } finally {
+            rFile.close();
+        }
+        assertFalse("the extension holds data rather than a hole", Arrays.equals(new byte[BUFFER_LENGTH], last));
+
+        Map<String, OpStats> ops = new HashMap<String, OpStats>();
+        for (OpStats stats : tester.opStats())
+            ops.put(stats.op(), stats);
+        assertTrue("random reads are recorded per size", ops.get("random read 4K").totalCount() > 0);
+        assertTrue("sequential writes are recorded per size", ops.get("sequential write 16K").latency().getCount() > 0);
+        assertTrue("per operation table", tester.opTable().contains("random read 64K"));
+    }
+
+    @Test public void groupCommitTest() throws IOException
+    {
+        DiskIOTester tester = new DiskIOTester(DURATION_MS, BUFFER_LENGTH, file.getPath(), false, MAX_FILE_SIZE, false, THREAD_COUNT, false, 0, false, 1);
+        tester.setForcing(0, false, true);
+        runToCompletion(tester);
+
+        Map<String, OpStats> ops = new HashMap<String, OpStats>();
+        for (OpStats stats : tester.opStats())
+            ops.put(stats.op(), stats);
+        long forces = ops.get("fdatasync").latency().getCount(), commits = ops.get("group commit").latency().getCount();
+        assertTrue("writes were forced", forces > 0);
+        assertTrue("every write waits for a force, which may be shared", commits >= forces);
+        assertTrue("forces are timed separately from writes", tester.opTable().contains("fdatasync"));
+    }
+
+    @Test public void finalForceTest() throws IOException
+    {
+        //
+        // Blocking and asynchronous handlers, neither of which reaches the forcing cadence during the run
+        //
+        for (int asyncDepth : new int[]{0, 8})
+        {
+            DiskIOTester tester = new DiskIOTester(DURATION_MS, BUFFER_LENGTH, file.getPath(), false, MAX_FILE_SIZE, true, THREAD_COUNT, false, asyncDepth, false, Integer.MAX_VALUE);
+            runToCompletion(tester);
+            //
+            // Handlers release, and so force, shortly after the tester closes
+            //
+            OpStats fsync = null;
+            for (int i=0; i < 50 && (fsync == null || fsync.latency().getCount() < THREAD_COUNT); i++)
+            {
+                try
+                {
+                    Thread.sleep(100);
+                } catch (InterruptedException ie){}
+                for (OpStats stats : tester.opStats())
+                    if (stats.op().equals("fsync"))
+                        fsync = stats;
+            }
+            assertNotNull("forces are recorded", fsync);
+            assertEquals("every handler forces its last writes when it stops", THREAD_COUNT, fsync.latency().getCount());
+        }
+    }
+
+    @Test public void appendLogTest() throws IOException
+    {
+        final int segmentSize = 1024*1024, retained = 2;
+        DiskIOTester tester = new DiskIOTester(DURATION_MS, BUFFER_LENGTH, file.getPath(), false, segmentSize, false, THREAD_COUNT, true, 0, false, 16);
+        tester.setAppendLog(true, retained, true);
+        runToCompletion(tester);
+
+        File[] segments = file.getParentFile().listFiles(new FilenameFilter(){
+            public boolean accept(File dir, String name)
+            {
+                return name.startsWith(file.getName() +".");
+            }});
+        try
+        {
+            Map<String, OpStats> ops = new HashMap<String, OpStats>();
+            for (OpStats stats : tester.opStats())
+                ops.put(stats.op(), stats);
+            assertTrue("records were appended", ops.get("append 4K").latency().getCount() > 0);
+            assertTrue("the log rolled", ops.get("segment roll").latency().getCount() > 0);
+            assertTrue("older segments are deleted", segments.length <= retained);
+            for (File segment : segments)
+                assertEquals("segments are preallocated", segmentSize, segment.length());
+        } finally {
+            for (File segment : segments)
+                segment.delete();
+        }
+    }
+
+    @Test public void appendLogGroupCommitTest() throws IOException
+    {
+        final int segmentSize = 1024*1024, retained = 2;
+        DiskIOTester tester = new DiskIOTester(DURATION_MS, BUFFER_LENGTH, file.getPath(), false, segmentSize, false, THREAD_COUNT, true, 0, false, 1);
+        tester.setForcing(0, false, true);
+        tester.setAppendLog(true, retained, false);
+        runToCompletion(tester);
+
+        File[] segments = file.getParentFile().listFiles(new FilenameFilter(){
+            public boolean accept(File dir, String name)
+            {
+                return name.startsWith(file.getName() +".");
+            }});
+        try
+        {
+            Map<String, OpStats> ops = new HashMap<String, OpStats>();
+            for (OpStats stats : tester.opStats())
+                ops.put(stats.op(), stats);
+            long appends = ops.get("append 4K").latency().getCount(), commits = ops.get("group commit").latency().getCount();
+            assertTrue("the log rolled", ops.get("segment roll").latency().getCount() > 0);
+            assertTrue("appends were forced", ops.get("fdatasync").latency().getCount() > 0);
+            //
+            // Handlers that appended to a segment since rolled also wait for its force, the last append of each may have been cut off by close()
+            //
+            assertTrue("every append waits for a force of each segment it wrote to", commits >= appends - THREAD_COUNT);
+        } finally {
+            for (File segment : segments)
+                segment.delete();
+        }
+    }
+
+    @Test public void fileTreeTest() throws Exception
+    {
+        File root = java.nio.file.Files.createTempDirectory("iotester").toFile();
+        try
+        {
+            double[] mix = FileTreeIOTester.parseMix(FileTreeIOTester.DEFAULT_MIX);
+            FileTreeIOTester tester = new FileTreeIOTester(DURATION_MS, BUFFER_LENGTH, root.getPath(), 4, 2, THREAD_COUNT, 1000, mix);
+            runToCompletion(tester);
+
+            Map<String, OpStats> ops = new HashMap<String, OpStats>();
+            for (OpStats stats : tester.opStats())
+                ops.put(stats.op(), stats);
+            for (FileTreeIOTester.Op op : FileTreeIOTester.Op.values())
+                assertTrue(op +" operations were timed", ops.get(op.name().toLowerCase()).latency().getCount() > 0);
+            assertTrue("files were written", tester.totalWriteCount() > 0);
+            assertEquals("overwrites write whole files", BUFFER_LENGTH * ops.get("write").totalCount(), ops.get("write").totalBytes());
+            assertTrue("operations are counted", tester.totalTransactionCount() > 0);
+
+            //
+            // The workers clean up after the tester is closed
+            //
+            for (int i=0; i < 100 && root.list().length > 0; i++)
+                Thread.sleep(100);
+            assertEquals("the tree is removed", 0, root.list().length);
+        } finally {
+            root.delete();
+        }
+    }
+
+    @Test public void clusterOpStatsTest() throws Exception
+    {
+        File root = java.nio.file.Files.createTempDirectory("iotester").toFile();
+        final ClusterAgent[] agents = {new ClusterAgent(6686), new ClusterAgent(6687)};
+        for (ClusterAgent agent : agents)
+            new Thread(agent).start();
+        try
+        {
+            Map<String, String> plan = IOTester.argMap(new String[]{"-fileTree", root.getPath() + File.separator +"{index}", "-fileSize", Integer.toString(BUFFER_LENGTH),
+                "-fanOut", "4", "-duration", Integer.toString(DURATION_MS / 1000)});
+            ClusterCoordinator coordinator = new ClusterCoordinator(ClusterCoordinator.agentAddresses("localhost:6686,localhost:6687"), plan);
+            String report = coordinator.run();
+
+            Map<String, OpStats> ops = new HashMap<String, OpStats>();
+            for (OpStats stats : coordinator.total().ops())
+                ops.put(stats.op(), stats);
+            for (FileTreeIOTester.Op op : FileTreeIOTester.Op.values())
+            {
+                String name = op.name().toLowerCase();
+                long count = 0;
+                for (AgentReport agent : coordinator.reports())
+                    for (OpStats stats : agent.ops())
+                        if (stats.op().equals(name))
+                            count += stats.totalCount();
+                assertTrue(op +" operations were reported", count > 0);
+                assertEquals(op +" operations are merged by name", count, ops.get(name).totalCount());
+                assertEquals(op +" latencies are merged", count, ops.get(name).latency().getCount(), 0.1 * count);
+            }
+            assertTrue("report lists the operations", report.contains("Operations of the cluster"));
+        } finally {
+            for (ClusterAgent agent : agents)
+                agent.close();
+            for (File dir : root.listFiles())
+                dir.delete();
+            root.delete();
+        }
+    }
+}
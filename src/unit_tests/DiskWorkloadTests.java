@@ -0,0 +1,83 @@
+package im.boddy.iotester.unit_tests;
+import im.boddy.iotester.DiskWorkload;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+
+public class DiskWorkloadTests
+{
+    private static final int N_DRAWS = 100000;
+    private static final long N_SLOTS = 1000;
+
+    @Test public void parseTest()
+    {
+        DiskWorkload workload = DiskWorkload.parse(70, "4k:60, 16K:30,1m:10", true, false, null);
+        assertEquals(3, workload.blockSizeCount());
+        assertEquals(4096, workload.blockSize(0));
+        assertEquals(16384, workload.blockSize(1));
+        assertEquals(1048576, workload.maxBlockSize());
+        assertEquals(4096, workload.minBlockSize());
+        assertTrue(workload.isRandom(true));
+        assertFalse(workload.isRandom(false));
+        assertEquals("random read 16K", workload.opName(true, 1));
+        assertEquals("sequential write 1M", workload.opName(false, 2));
+
+        try
+        {
+            DiskWorkload.parse(70, "4k", true, true, "pareto");
+            fail("unknown skew was accepted");
+        } catch (IllegalArgumentException expected) {}
+        try
+        {
+            DiskWorkload.parse(101, "4k", true, true, null);
+            fail("read percentage above 100 was accepted");
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    @Test public void mixTest()
+    {
+        DiskWorkload workload = DiskWorkload.parse(70, "4k:60,16k:30,1m:10", true, true, null);
+        Random random = new Random(1);
+        int reads = 0;
+        int[] sizes = new int[workload.blockSizeCount()];
+        for (int i=0; i < N_DRAWS; i++)
+        {
+            if (workload.nextIsRead(random))
+                reads++;
+            sizes[workload.nextSizeIndex(random)]++;
+        }
+        assertEquals("read fraction", 0.7, reads / (double) N_DRAWS, 0.01);
+        assertEquals("4K fraction", 0.6, sizes[0] / (double) N_DRAWS, 0.01);
+        assertEquals("16K fraction", 0.3, sizes[1] / (double) N_DRAWS, 0.01);
+        assertEquals("1M fraction", 0.1, sizes[2] / (double) N_DRAWS, 0.01);
+    }
+
+    /**
+     * @return the fraction of draws falling in the first tenth of the slots
+     */
+    private static double headFraction(DiskWorkload workload)
+    {
+        DiskWorkload.Sampler sampler = workload.sampler(N_SLOTS);
+        Random random = new Random(1);
+        int head = 0;
+        for (int i=0; i < N_DRAWS; i++)
+        {
+            long slot = sampler.nextSlot(random);
+            assertTrue("slot within range", slot >= 0 && slot < N_SLOTS);
+            if (slot < N_SLOTS / 10)
+                head++;
+        }
+        return head / (double) N_DRAWS;
+    }
+
+    @Test public void skewTest()
+    {
+        assertEquals("uniform", 0.1, headFraction(DiskWorkload.parse(0, "4k", true, true, "uniform")), 0.01);
+        assertEquals("hotspot", 0.9, headFraction(DiskWorkload.parse(0, "4k", true, true, "hotspot:0.1:0.9")), 0.01);
+
+        double zipf = headFraction(DiskWorkload.parse(0, "4k", true, true, "zipf:0.99"));
+        assertTrue("zipf concentrates on the first slots, but head fraction is "+ zipf, zipf > 0.5);
+    }
+}
@@ -1,7 +1,10 @@
 package im.boddy.iotester.unit_tests;
 import im.boddy.iotester.Histogram;
+import im.boddy.iotester.HistogramTool;
+import im.boddy.iotester.LatencyHistogram;
 
 import java.util.*;
+import java.io.*;
 
 import static org.junit.Assert.*;
 import org.junit.*;
@@ -63,4 +66,180 @@ public class HistogramTests
         float average = valSum / nVals;
         assertEquals("Average must compute correctly", average, histo.getAverage(), DELTA_TOLERANCE);
     }
+
+    @Test public void varianceTest()
+    {
+        Histogram histo  = new Histogram(100, 0, 100, null, null, null);
+        int nVals = 1000;
+        float[] binVals = new float[nVals];
+        double sum = 0;
+        for (int i=0; i < nVals ; i++)
+        {
+            float val = random.nextFloat() * 100;
+            histo.add(val);
+            binVals[i] = histo.binXval(histo.getBin(val));
+            sum += binVals[i];
+        }
+        double average = sum / nVals, variance = 0;
+        for (float binVal : binVals)
+            variance += (binVal - average) * (binVal - average);
+        variance /= nVals;
+
+        assertEquals("Variance must compute correctly", variance, histo.getVariance(), 1.e-3);
+    }
+
+    @Test public void quantileTest()
+    {
+        Histogram histo  = new Histogram(100, 0, 100, null, null, null);
+        for (int i=0; i < 100; i++)
+            histo.add(i + 0.5f);
+        histo.add(-1);
+        histo.add(1000);
+
+        assertEquals("median", 49.5f, histo.getQuantile(0.5f), DELTA_TOLERANCE);
+        float[] interval = histo.getConfidenceLevelInterval(0.91f);
+        assertEquals("lower bound", 4.5f, interval[0], DELTA_TOLERANCE);
+        assertEquals("upper bound", 95.5f, interval[1], DELTA_TOLERANCE);
+
+        assertEquals("entries include under/overflow", 102, histo.getEntries());
+        assertEquals("min", -1, histo.getMin(), DELTA_TOLERANCE);
+        assertEquals("max", 1000, histo.getMax(), DELTA_TOLERANCE);
+    }
+
+    @Test public void logLinearTest()
+    {
+        int significantDigits = 3;
+        Histogram histo  = Histogram.logLinear(significantDigits, 0.001f, 1e6f, null, null, null);
+        assertEquals("nine decades", 9 * 900, histo.nBins());
+
+        for (int i=0; i < 10000; i++)
+        {
+            float val = (float) Math.pow(10, -3 + 9 * random.nextDouble());
+            int bin = histo.getBin(val);
+            assertTrue("value within bin", histo.binLowEdge(bin) <= val * (1 + DELTA_TOLERANCE) && val <= histo.binHighEdge(bin) * (1 + DELTA_TOLERANCE));
+            assertTrue("relative resolution", histo.binWidth(bin) / val <= Math.pow(10, 1 - significantDigits) * (1 + DELTA_TOLERANCE));
+        }
+
+        assertEquals("below xMin underflows", histo.getBin(-1), histo.getBin(0));
+        histo.add(0);
+        assertEquals(1, histo.getUnderflow(), DELTA_TOLERANCE);
+    }
+
+    @Test public void autoRangingTest()
+    {
+        Histogram histo  = Histogram.autoRanging(1000, 0, 1, null, null, null);
+        for (int i=0; i < 1000; i++)
+            histo.add(i * 100);
+        histo.add(-5);
+
+        assertEquals("nothing overflows", 0, histo.getOverflow(), DELTA_TOLERANCE);
+        assertEquals("nothing underflows", 0, histo.getUnderflow(), DELTA_TOLERANCE);
+        assertTrue("range covers the values", histo.xMax() >= 99900 && histo.xMin() <= -5);
+        assertEquals("median", 50000, histo.getQuantile(0.5f), 2 * histo.binWidth());
+        assertEquals("average", 49950, histo.getAverage(), 2 * histo.binWidth());
+    }
+
+    @Test public void mergeTest()
+    {
+        Histogram first = new Histogram(100, 0, 100, "Merged", null, null), second = new Histogram(100, 0, 100, "Merged", null, null);
+        Histogram all = new Histogram(100, 0, 100, "Merged", null, null);
+        Random values = new Random(1);
+        for (int i=0; i < 1000; i++)
+        {
+            float val = (float) (50 + 20 * values.nextGaussian());
+            (i % 3 == 0 ? first : second).add(val);
+            all.add(val);
+        }
+
+        first.merge(second);
+        assertEquals("entries", all.getEntries(), first.getEntries());
+        assertEquals("average", all.getAverage(), first.getAverage(), DELTA_TOLERANCE);
+        assertEquals("variance", all.getVariance(), first.getVariance(), DELTA_TOLERANCE);
+        assertEquals("min", all.getMin(), first.getMin(), 0);
+        assertEquals("max", all.getMax(), first.getMax(), 0);
+        for (int i=-1; i <= first.nBins(); i++)
+            assertEquals("bin "+ i, all.binYval(i), first.binYval(i), 0);
+
+        try
+        {
+            first.merge(new Histogram(100, 0, 200, null, null, null));
+            fail("different ranges merged");
+        } catch (IllegalArgumentException iae){}
+    }
+
+    @Test public void autoRangingMergeTest()
+    {
+        Histogram narrow = Histogram.autoRanging(100, 0, 1, null, null, null), wide = Histogram.autoRanging(100, 0, 1, null, null, null);
+        narrow.add(0.5f);
+        for (int i=0; i < 100; i++)
+            wide.add(i * 10);
+
+        narrow.merge(wide);
+        assertEquals("entries", 101, narrow.getEntries());
+        assertTrue("range covers both", narrow.xMax() >= 990);
+        assertEquals("nothing overflows", 0, narrow.getOverflow(), DELTA_TOLERANCE);
+        assertEquals("average", wide.getAverage() * 100 / 101, narrow.getAverage(), 2 * narrow.binWidth());
+    }
+
+    @Test public void serializationTest() throws IOException
+    {
+        Histogram histo = Histogram.logLinear(2, 0.01f, 1000, "Serialized", "x", "y");
+        Random values = new Random(1);
+        for (int i=0; i < 1000; i++)
+            histo.add((float) Math.abs(10 * values.nextGaussian()));
+        histo.add(-1);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        histo.writeTo(new DataOutputStream(bytes));
+        Histogram copy = Histogram.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals("binning", histo.binning(), copy.binning());
+        assertEquals("entries", histo.getEntries(), copy.getEntries());
+        assertEquals("max", histo.getMax(), copy.getMax(), 0);
+        assertEquals("contents", histo.toString(), copy.toString());
+    }
+
+    @Test public void compactSerializationTest() throws IOException
+    {
+        Histogram histo = new Histogram(100000, 0, 1000, "Sparse", null, null);
+        for (int i=0; i < 1000; i++)
+            histo.add(500 + i % 10);
+        histo.add(1, 0.25f);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        histo.writeTo(new DataOutputStream(bytes));
+        assertTrue("only non-empty bins are written", bytes.size() < 100);
+
+        Histogram copy = Histogram.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals("fractional weights", 0.25f, copy.binYval(copy.getBin(1)), DELTA_TOLERANCE);
+        assertEquals("average", histo.getAverage(), copy.getAverage(), DELTA_TOLERANCE);
+    }
+
+    @Test public void histogramToolTest() throws IOException
+    {
+        File first = File.createTempFile("iotester", ".bin"), second = File.createTempFile("iotester", ".bin");
+        try
+        {
+            Histogram rates = new Histogram(100, 0, 100, "Read", null, null);
+            LatencyHistogram latency = new LatencyHistogram("Read latency");
+            rates.add(10);
+            latency.record(1000);
+            HistogramTool.write(first, Arrays.asList(rates), Arrays.asList(latency));
+            rates.add(20);
+            latency.record(2000);
+            HistogramTool.write(second, Arrays.asList(rates), Arrays.asList(latency));
+
+            Map<String, Histogram> histograms = new HashMap<String, Histogram>();
+            Map<String, LatencyHistogram> latencies = new HashMap<String, LatencyHistogram>();
+            HistogramTool.read(first, histograms, latencies);
+            HistogramTool.read(second, histograms, latencies);
+
+            assertEquals("merged by title", 3, histograms.get("Read").getEntries());
+            assertEquals("latencies merged by title", 3, latencies.get("Read latency").getCount());
+            assertEquals("max", 2000, latencies.get("Read latency").getMax());
+        } finally {
+            first.delete();
+            second.delete();
+        }
+    }
 }
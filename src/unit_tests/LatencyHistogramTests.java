@@ -0,0 +1,97 @@
+package im.boddy.iotester.unit_tests;
+import im.boddy.iotester.LatencyHistogram;
+
+import java.util.*;
+import java.io.*;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+
+public class LatencyHistogramTests
+{
+    private static final Random random = new Random(666);
+
+    @Test public void bucketTest()
+    {
+        LatencyHistogram histo = new LatencyHistogram(null);
+        for (int i=0; i < 10000; i++)
+        {
+            long val = random.nextLong() >>> (1 + random.nextInt(63));
+            int bucket = histo.getBucket(val);
+            assertTrue("value is above its bucket lower bound", histo.bucketLowerBound(bucket) <= val);
+            assertTrue("value is below its bucket upper bound", val <= histo.bucketUpperBound(bucket));
+        }
+        assertEquals("small values have exact buckets", 5, histo.bucketUpperBound(histo.getBucket(5)));
+    }
+
+    @Test public void percentileTest()
+    {
+        LatencyHistogram histo = new LatencyHistogram(null);
+        int nVals = 100000;
+        for (int i=1; i <= nVals; i++)
+            histo.record(i * 1000L);
+
+        assertEquals("count", nVals, histo.getCount());
+        assertEquals("max is exact", nVals * 1000L, histo.getMax());
+        assertEquals("min is exact", 1000L, histo.getMin());
+        assertEquals("mean is exact", (nVals + 1) * 500., histo.getMean(), 1.e-6);
+
+        double relativeError = 1. / (1 << LatencyHistogram.DEFAULT_SUB_BUCKET_BITS);
+        for (double percentile : new double[]{50, 90, 99, 99.9})
+        {
+            double expected = percentile / 100 * nVals * 1000L;
+            assertEquals("p"+ percentile, expected, histo.getValueAtPercentile(percentile), expected * relativeError);
+        }
+        assertEquals("p100 is the max", histo.getMax(), histo.getValueAtPercentile(100));
+    }
+
+    @Test public void emptyTest()
+    {
+        LatencyHistogram histo = new LatencyHistogram(null);
+        assertEquals(0, histo.getValueAtPercentile(99));
+        assertEquals(0, histo.getMin());
+        assertEquals(0, histo.getMax());
+    }
+
+    @Test public void mergeTest() throws IOException
+    {
+        LatencyHistogram first = new LatencyHistogram("first"), second = new LatencyHistogram("second"), all = new LatencyHistogram("all");
+        for (int i=1; i <= 10000; i++)
+        {
+            (i % 2 == 0 ? first : second).record(i * 1000L);
+            all.record(i * 1000L);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        second.writeTo(new DataOutputStream(bytes));
+        first.merge(LatencyHistogram.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+
+        assertEquals("count", all.getCount(), first.getCount());
+        assertEquals("min", all.getMin(), first.getMin());
+        assertEquals("max", all.getMax(), first.getMax());
+        assertEquals("mean", all.getMean(), first.getMean(), 1.e-6);
+        for (double percentile : LatencyHistogram.REPORTED_PERCENTILES)
+            assertEquals("p"+ percentile, all.getValueAtPercentile(percentile), first.getValueAtPercentile(percentile));
+
+        first.reset();
+        assertEquals("reset", 0, first.getCount());
+        assertEquals("reset max", 0, first.getMax());
+    }
+
+    @Test public void sinceTest()
+    {
+        LatencyHistogram histo = new LatencyHistogram(null);
+        for (int i=1; i <= 1000; i++)
+            histo.record(1000);
+        LatencyHistogram earlier = histo.copy();
+        for (int i=1; i <= 1000; i++)
+            histo.record(1000000);
+
+        LatencyHistogram interval = histo.since(earlier);
+        assertEquals("count", 1000, interval.getCount());
+        assertEquals("mean", 1000000, interval.getMean(), 1.e-6);
+        double relativeError = 1. / (1 << LatencyHistogram.DEFAULT_SUB_BUCKET_BITS);
+        assertEquals("median of the interval only", 1000000, interval.getValueAtPercentile(50), 1000000 * relativeError);
+        assertEquals("max", 1000000, interval.getMax());
+    }
+}
@@ -36,6 +36,405 @@ public class NetworkIOTests
 
     }
 
+    @Test public void NioIOTest() throws IOException
+    {
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", DEFAULT_PORT+1);
+        InetSocketAddress[] clientAddresses = {serverAddress};
+
+        NioNetworkIOTester tester = new NioNetworkIOTester(serverAddress, clientAddresses, THREAD_COUNT, 2, DURATION_MS, IOTester.DEFAULT_BUFFER_LENGTH);
+        new Thread(tester).start();
+
+        while(! tester.isClosed())
+            try
+            {
+                Thread.sleep(500);
+            } catch (InterruptedException ie){}
+
+
+        float deltaCount = Math.abs((float) tester.totalReadCount() / (float) tester.totalWriteCount() - 1.f);
+
+        assertTrue("I/O accounting", deltaCount < 1.e-3f);
+    }
+
+    @Test public void ZeroCopyIOTest() throws IOException
+    {
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", DEFAULT_PORT+2);
+        InetSocketAddress[] clientAddresses = {serverAddress};
+
+        NioNetworkIOTester tester = new NioNetworkIOTester(serverAddress, clientAddresses, THREAD_COUNT, 2, DURATION_MS, IOTester.DEFAULT_BUFFER_LENGTH, true, false);
+        new Thread(tester).start();
+
+        while(! tester.isClosed())
+            try
+            {
+                Thread.sleep(500);
+            } catch (InterruptedException ie){}
+
+
+        float deltaCount = Math.abs((float) tester.totalReadCount() / (float) tester.totalWriteCount() - 1.f);
+
+        assertTrue("I/O accounting", deltaCount < 1.e-3f);
+    }
+
+    @Test public void PacedNioIOTest() throws IOException
+    {
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", DEFAULT_PORT+3);
+        InetSocketAddress[] clientAddresses = {serverAddress};
+        int targetOps = 1000;
+
+        NioNetworkIOTester tester = new NioNetworkIOTester(serverAddress, clientAddresses, THREAD_COUNT, 2, DURATION_MS, IOTester.DEFAULT_BUFFER_LENGTH);
+        tester.setPacer(new Pacer(targetOps));
+        new Thread(tester).start();
+
+        while(! tester.isClosed())
+            try
+            {
+                Thread.sleep(500);
+            } catch (InterruptedException ie){}
 
+        float ops = (float) tester.totalWriteCount() / IOTester.DEFAULT_BUFFER_LENGTH;
+        float expectedOps = targetOps * DURATION_MS / 1000.f;
+        assertEquals("writes follow the target rate", expectedOps, ops, 0.1f * expectedOps);
+    }
 
+    @Test public void EchoIOTest() throws IOException
+    {
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", DEFAULT_PORT+4);
+        InetSocketAddress[] clientAddresses = {serverAddress};
+
+        NetworkIOTester tester = new NetworkIOTester(serverAddress, clientAddresses, THREAD_COUNT, DURATION_MS, IOTester.DEFAULT_BUFFER_LENGTH, true, 100, 1000, 4, false);
+        new Thread(tester).start();
+
+        while(! tester.isClosed())
+            try
+            {
+                Thread.sleep(500);
+            } catch (InterruptedException ie){}
+
+        assertTrue("transactions completed", tester.totalTransactionCount() > 0);
+        assertTrue("round-trip times recorded", tester.rttLatency().getCount() >= tester.totalTransactionCount());
+        float bytesPerTransaction = 100 + 1000;
+        assertEquals("requests and responses of the requested sizes", bytesPerTransaction * tester.totalTransactionCount(), tester.totalReadCount(), bytesPerTransaction * 4 * THREAD_COUNT);
+    }
+
+    @Test public void PipelinedLargeEchoTest() throws IOException
+    {
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", DEFAULT_PORT+13);
+        InetSocketAddress[] clientAddresses = {serverAddress};
+        //
+        // Requests and responses much larger than the socket buffers, so that both ends block in writes
+        //
+        int messageSize = 256*1024;
+
+        NetworkIOTester tester = new NetworkIOTester(serverAddress, clientAddresses, 2, DURATION_MS / 2, IOTester.DEFAULT_BUFFER_LENGTH, true, messageSize, messageSize, 8, false);
+        new Thread(tester).start();
+
+        while(! tester.isClosed())
+            try
+            {
+                Thread.sleep(500);
+            } catch (InterruptedException ie){}
+
+        assertTrue("pipelined transactions completed", tester.totalTransactionCount() > 0);
+        float bytesPerTransaction = 2 * messageSize;
+        assertEquals("requests and responses of the requested sizes", bytesPerTransaction * tester.totalTransactionCount(), tester.totalReadCount(), bytesPerTransaction * 8 * 2);
+    }
+
+    @Test public void EchoRequiresBlockingEngineTest() throws IOException
+    {
+        try
+        {
+            IOTester.testersFromArgs(IOTester.argMap(new String[]{"-serverAddress", "localhost:"+ (DEFAULT_PORT+14), "-echo", "true", "-engine", "nio"}));
+            fail("echo was accepted by the nio engine");
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    @Test public void DuplexIOTest() throws IOException
+    {
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", DEFAULT_PORT+5);
+        InetSocketAddress[] clientAddresses = {serverAddress};
+
+        NetworkIOTester tester = new NetworkIOTester(serverAddress, clientAddresses, THREAD_COUNT, DURATION_MS, IOTester.DEFAULT_BUFFER_LENGTH, false, 0, 0, 1, true);
+        new Thread(tester).start();
+
+        while(! tester.isClosed())
+            try
+            {
+                Thread.sleep(500);
+            } catch (InterruptedException ie){}
+
+
+        float deltaCount = Math.abs((float) tester.totalReadCount() / (float) tester.totalWriteCount() - 1.f);
+
+        assertTrue("I/O accounting", deltaCount < 1.e-3f);
+    }
+
+    @Test public void NioDuplexIOTest() throws IOException
+    {
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", DEFAULT_PORT+6);
+        InetSocketAddress[] clientAddresses = {serverAddress};
+
+        NioNetworkIOTester tester = new NioNetworkIOTester(serverAddress, clientAddresses, THREAD_COUNT, 2, DURATION_MS, IOTester.DEFAULT_BUFFER_LENGTH, false, true);
+        new Thread(tester).start();
+
+        while(! tester.isClosed())
+            try
+            {
+                Thread.sleep(500);
+            } catch (InterruptedException ie){}
+
+
+        float deltaCount = Math.abs((float) tester.totalReadCount() / (float) tester.totalWriteCount() - 1.f);
+
+        assertTrue("I/O accounting", deltaCount < 1.e-3f);
+    }
+
+    private static PeerStats loopbackStats(IOTester tester)
+    {
+        for (PeerStats stats : tester.peerStats())
+            if (stats.peer().equals("127.0.0.1"))
+                return stats;
+        return null;
+    }
+
+    @Test public void PeerBreakdownTest() throws IOException
+    {
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", DEFAULT_PORT+7);
+        InetSocketAddress[] clientAddresses = {serverAddress};
+
+        NetworkIOTester tester = new NetworkIOTester(serverAddress, clientAddresses, THREAD_COUNT, DURATION_MS / 4, IOTester.DEFAULT_BUFFER_LENGTH);
+        new Thread(tester).start();
+
+        try
+        {
+            Thread.sleep(DURATION_MS / 8);
+        } catch (InterruptedException ie){}
+        //
+        // Clients only write and handlers only read
+        //
+        Map<String, Long> read = tester.getConnectionBytesRead(), written = tester.getConnectionBytesWritten();
+        assertEquals("every open connection is counted", 2 * THREAD_COUNT, read.size());
+        for (String connection : read.keySet())
+            assertTrue("connections are counted separately", read.get(connection) + written.get(connection) > 0);
+
+        while(! tester.isClosed())
+            try
+            {
+                Thread.sleep(500);
+            } catch (InterruptedException ie){}
+
+        PeerStats stats = loopbackStats(tester);
+        assertNotNull("loopback peer is tracked", stats);
+        assertEquals("client and handler connections", 2 * THREAD_COUNT, stats.connections());
+        assertEquals("per-peer reads add up", tester.totalReadCount(), stats.totalRead(), 0.01 * tester.totalReadCount());
+        assertTrue("table lists the peer", tester.peerTable().contains("127.0.0.1"));
+    }
+
+    private static Process startAgent(int port) throws IOException
+    {
+        String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), IOTester.class.getName(), "-agent", Integer.toString(port));
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        return builder.start();
+    }
+
+    @Test public void ClusterTest() throws IOException
+    {
+        //
+        // Agents run in their own JVMs, as on separate nodes, since histograms are per-process
+        //
+        Process[] agents = {startAgent(DEFAULT_PORT+8), startAgent(DEFAULT_PORT+9)};
+        try
+        {
+            //
+            // Agent i serves on port 668i
+            //
+            Map<String, String> plan = IOTester.argMap(new String[]{"-serverAddress", "{host}:668{index}",
+                "-clientAddresses", "localhost:6680,localhost:6681", "-threadCount", "2", "-duration", "3"});
+            InetSocketAddress[] agentAddresses = ClusterCoordinator.agentAddresses("localhost:"+ (DEFAULT_PORT+8) +",localhost:"+ (DEFAULT_PORT+9));
+
+            ClusterCoordinator coordinator = new ClusterCoordinator(agentAddresses, plan);
+            String report = coordinator.run();
+
+            assertEquals("a report per agent", 2, coordinator.reports().size());
+            long totalRead = 0;
+            for (AgentReport agent : coordinator.reports())
+            {
+                assertTrue("every agent transferred data", agent.totalWrite() > 0);
+                totalRead += agent.totalRead();
+            }
+            AgentReport total = coordinator.total();
+            assertEquals("totals are summed", totalRead, total.totalRead());
+            assertEquals("cluster-wide I/O accounting", 1, (float) total.totalRead() / total.totalWrite(), 0.05);
+            assertEquals("rate histograms are merged", coordinator.reports().get(0).writeHistogram().getEntries() + coordinator.reports().get(1).writeHistogram().getEntries(), total.writeHistogram().getEntries());
+            assertTrue("report lists the cluster", report.contains("cluster"));
+        } finally {
+            for (Process agent : agents)
+                agent.destroy();
+        }
+    }
+
+    @Test public void ClusterAgentFailureTest() throws IOException
+    {
+        //
+        // An agent that prepares and then drops the connection instead of reporting
+        //
+        final ServerSocket agent = new ServerSocket(DEFAULT_PORT+15);
+        new Thread(new Runnable(){
+            public void run()
+            {
+                try
+                {
+                    Socket s = agent.accept();
+                    DataInputStream in = new DataInputStream(s.getInputStream());
+                    DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                    for (int n = in.readInt(); n > 0; n--)
+                    {
+                        in.readUTF();
+                        in.readUTF();
+                    }
+                    out.writeUTF("");
+                    out.flush();
+                    in.readByte();
+                    s.close();
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }}).start();
+        try
+        {
+            Map<String, String> plan = IOTester.argMap(new String[]{"-serverAddress", "localhost:6682", "-duration", "1"});
+            InetSocketAddress[] agentAddresses = ClusterCoordinator.agentAddresses("localhost:"+ (DEFAULT_PORT+15));
+            new ClusterCoordinator(agentAddresses, plan).run();
+            fail("a lost agent fails the run");
+        } catch (IOException expected) {
+            assertTrue("the failed agent is named", expected.getMessage().contains(":"+ (DEFAULT_PORT+15)));
+        } finally {
+            agent.close();
+        }
+    }
+
+    /**
+     * @return true once the port can be bound again, ie. the tester that bound it was closed
+     */
+    private static boolean released(int port)
+    {
+        for (int i=0; i < 50; i++)
+        {
+            try
+            {
+                new ServerSocket(port).close();
+                return true;
+            } catch (IOException ioe) {}
+            try
+            {
+                Thread.sleep(100);
+            } catch (InterruptedException ie){}
+        }
+        return false;
+    }
+
+    @Test public void ClusterAgentReleasesPlanTest() throws IOException
+    {
+        ClusterAgent agent = new ClusterAgent(DEFAULT_PORT+19);
+        new Thread(agent).start();
+        try
+        {
+            //
+            // A coordinator that goes away after the agent has prepared, without sending START or ABORT
+            //
+            Socket s = new Socket("localhost", DEFAULT_PORT+19);
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            out.writeInt(2);
+            out.writeUTF("serverAddress");
+            out.writeUTF("localhost:6689");
+            out.writeUTF("duration");
+            out.writeUTF("1");
+            out.flush();
+            assertEquals("agent prepared", "", new DataInputStream(s.getInputStream()).readUTF());
+            s.close();
+
+            assertTrue("the plan's server is closed", released(6689));
+        } finally {
+            agent.close();
+        }
+    }
+
+    @Test public void ClusterCoordinatorAbortsPreparedAgentsTest() throws IOException
+    {
+        ClusterAgent agent = new ClusterAgent(DEFAULT_PORT+17);
+        new Thread(agent).start();
+        //
+        // The second agent drops the connection instead of preparing
+        //
+        final ServerSocket failing = new ServerSocket(DEFAULT_PORT+18);
+        new Thread(new Runnable(){
+            public void run()
+            {
+                try
+                {
+                    failing.accept().close();
+                } catch (IOException ioe) {}
+            }}).start();
+        try
+        {
+            Map<String, String> plan = IOTester.argMap(new String[]{"-serverAddress", "localhost:668{index}", "-duration", "60"});
+            InetSocketAddress[] agentAddresses = ClusterCoordinator.agentAddresses("localhost:"+ (DEFAULT_PORT+17) +",localhost:"+ (DEFAULT_PORT+18));
+            new ClusterCoordinator(agentAddresses, plan).run();
+            fail("a failed agent fails the run");
+        } catch (IOException expected) {
+            assertTrue("the failed agent is named", expected.getMessage().contains(":"+ (DEFAULT_PORT+18)));
+            assertTrue("the prepared agent's server is closed", released(6680));
+        } finally {
+            agent.close();
+            failing.close();
+        }
+    }
+
+    @Test public void ReshuffleRequiresSupportTest() throws IOException
+    {
+        InetSocketAddress[] peers = {new InetSocketAddress("localhost", DEFAULT_PORT+10), new InetSocketAddress("localhost", DEFAULT_PORT+11)};
+        TrafficPattern pattern = new TrafficPattern(TrafficPattern.Kind.PERMUTATION, peers, 0, 0);
+
+        NioNetworkIOTester tester = new NioNetworkIOTester(null, null, 1, 1, DURATION_MS, IOTester.DEFAULT_BUFFER_LENGTH);
+        try
+        {
+            tester.setPattern(pattern, 0, 1000);
+            fail("the nio engine accepted a reshuffled pattern");
+        } catch (IllegalArgumentException expected) {
+        } finally {
+            tester.close();
+        }
+    }
+
+    @Test public void ReshuffledPermutationTest() throws IOException
+    {
+        String peers = "localhost:"+ (DEFAULT_PORT+10) +",localhost:"+ (DEFAULT_PORT+11) +",localhost:"+ (DEFAULT_PORT+12);
+
+        List<IOTester> testers = new ArrayList<IOTester>();
+        for (int i=0; i < 3; i++)
+            testers.addAll(IOTester.testersFromArgs(IOTester.argMap(new String[]{"-pattern", "permutation", "-peers", peers, "-peerIndex", Integer.toString(i),
+                "-reshuffle", "1", "-duration", "3"})));
+        for (IOTester tester : testers)
+            new Thread(tester).start();
+
+        for (IOTester tester : testers)
+            while(! tester.isClosed())
+                try
+                {
+                    Thread.sleep(500);
+                } catch (InterruptedException ie){}
+
+        long totalRead = 0, totalWrite = 0;
+        for (IOTester tester : testers)
+        {
+            totalRead += tester.totalReadCount();
+            totalWrite += tester.totalWriteCount();
+        }
+        assertTrue("data transferred", totalWrite > 0);
+        assertEquals("I/O accounting across peers", 1, (float) totalRead / totalWrite, 0.05);
+        for (IOTester tester : testers)
+            assertTrue("at least three phases per peer", tester.phaseStats().size() >= 3);
+    }
 }
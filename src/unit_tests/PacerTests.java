@@ -0,0 +1,36 @@
+package im.boddy.iotester.unit_tests;
+import im.boddy.iotester.Pacer;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+
+public class PacerTests
+{
+    @Test public void timelineTest()
+    {
+        Pacer pacer = new Pacer(1000);
+        long first = pacer.reserve();
+        long second = pacer.reserve();
+        assertEquals("slots are one interval apart", 1000000, second - first);
+    }
+
+    @Test public void acquireTest()
+    {
+        Pacer pacer = new Pacer(1000);
+        long start = System.nanoTime();
+        long intended = 0;
+        for (int i=0; i < 200; i++)
+        {
+            intended = pacer.acquire();
+            assertTrue("never starts before the intended time", System.nanoTime() >= intended);
+        }
+        long elapsed = System.nanoTime() - start;
+        assertTrue("runs at the target rate", elapsed >= 199000000L);
+    }
+
+    @Test public void byteRateTest()
+    {
+        Pacer pacer = Pacer.forByteRate(100, 64*1024);
+        assertEquals("ops/sec from MB/sec", 100. * 1024 * 1000 / (64*1024), pacer.opsPerSec(), 1.e-6);
+    }
+}
@@ -0,0 +1,92 @@
+package im.boddy.iotester.unit_tests;
+import im.boddy.iotester.TrafficPattern;
+
+import java.util.*;
+import java.net.*;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+
+public class TrafficPatternTests
+{
+    private static final int N_PEERS = 5;
+
+    private static TrafficPattern pattern(TrafficPattern.Kind kind, int target)
+    {
+        InetSocketAddress[] peers = new InetSocketAddress[N_PEERS];
+        for (int i=0; i < N_PEERS; i++)
+            peers[i] = InetSocketAddress.createUnresolved("node"+ i, 1337);
+        return new TrafficPattern(kind, peers, target, 42);
+    }
+
+    /**
+     * @return how many nodes send to each node during the phase
+     */
+    private static int[] inDegrees(TrafficPattern pattern, int phase)
+    {
+        int[] inDegrees = new int[N_PEERS];
+        for (int self=0; self < N_PEERS; self++)
+            for (InetSocketAddress destination : pattern.destinations(self, phase))
+            {
+                assertNotEquals("nodes never send to themselves", pattern.peer(self), destination);
+                inDegrees[Integer.parseInt(destination.getHostString().substring(4))]++;
+            }
+        return inDegrees;
+    }
+
+    @Test public void allToAllTest()
+    {
+        TrafficPattern pattern = pattern(TrafficPattern.Kind.ALL_TO_ALL, 0);
+        for (int self=0; self < N_PEERS; self++)
+            assertEquals(N_PEERS-1, pattern.destinations(self, 0).length);
+        for (int inDegree : inDegrees(pattern, 0))
+            assertEquals(N_PEERS-1, inDegree);
+    }
+
+    @Test public void ringTest()
+    {
+        TrafficPattern pattern = pattern(TrafficPattern.Kind.RING, 0);
+        assertEquals(pattern.peer(0), pattern.destinations(N_PEERS-1, 0)[0]);
+        for (int inDegree : inDegrees(pattern, 0))
+            assertEquals(1, inDegree);
+    }
+
+    @Test public void incastOutcastTest()
+    {
+        TrafficPattern incast = pattern(TrafficPattern.Kind.INCAST, 2);
+        assertEquals("target only receives", 0, incast.destinations(2, 0).length);
+        assertEquals("everyone sends to the target", N_PEERS-1, inDegrees(incast, 0)[2]);
+
+        TrafficPattern outcast = pattern(TrafficPattern.Kind.OUTCAST, 2);
+        assertEquals("source sends to everyone", N_PEERS-1, outcast.destinations(2, 0).length);
+        assertEquals("others only receive", 0, outcast.destinations(0, 0).length);
+    }
+
+    @Test public void permutationTest()
+    {
+        TrafficPattern pattern = pattern(TrafficPattern.Kind.PERMUTATION, 0);
+        Set<String> permutations = new HashSet<String>();
+        for (int phase=0; phase < 20; phase++)
+        {
+            for (int inDegree : inDegrees(pattern, phase))
+                assertEquals("everyone receives from exactly one node", 1, inDegree);
+
+            StringBuilder sb = new StringBuilder();
+            for (int self=0; self < N_PEERS; self++)
+                sb.append(pattern.destinations(self, phase)[0]);
+            permutations.add(sb.toString());
+        }
+        assertTrue("reshuffled between phases", permutations.size() > 1);
+        assertArrayEquals("same on every node", pattern.destinations(3, 7), pattern(TrafficPattern.Kind.PERMUTATION, 0).destinations(3, 7));
+    }
+
+    @Test public void kindTest()
+    {
+        assertEquals(TrafficPattern.Kind.ALL_TO_ALL, TrafficPattern.kindFromString("all-to-all"));
+        try
+        {
+            TrafficPattern.kindFromString("broadcast");
+            fail();
+        } catch (IllegalArgumentException iae){}
+    }
+}